@@ -0,0 +1,83 @@
+package com.manning.apisecurityinaction;
+
+import java.io.IOException;
+import java.net.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+
+import org.eclipse.jetty.util.*;
+
+import com.google.common.cache.*;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.manning.apisecurityinaction.controller.MetricsController;
+
+/**
+ * Caches host name lookups for the link previewer. The same cached
+ * addresses are used both for the SSRF check and by the HTTP client when
+ * it connects, and every address is checked again at connect time, so a
+ * host cannot resolve to a permitted address for the check and to an
+ * internal one for the connection.
+ * <p>
+ * The JDK resolver does not expose record TTLs, so entries are kept for a
+ * fixed time matching the JVM's default positive lookup cache.
+ */
+class DnsCache implements SocketAddressResolver {
+    private final LoadingCache<String, InetAddress[]> cache;
+    private final Predicate<InetAddress> isBlocked;
+    private final MetricsController.Timer lookupTimer;
+
+    DnsCache(Duration ttl, Predicate<InetAddress> isBlocked,
+            MetricsController metrics) {
+        this.isBlocked = isBlocked;
+        this.lookupTimer = metrics.timer("dns.lookup.latency");
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(10_000)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build(new CacheLoader<>() {
+                    @Override
+                    public InetAddress[] load(String host) throws UnknownHostException {
+                        var start = System.nanoTime();
+                        try {
+                            return InetAddress.getAllByName(host);
+                        } finally {
+                            lookupTimer.recordNanos(System.nanoTime() - start);
+                        }
+                    }
+                });
+        metrics.gauge("dns.cache.hits", () -> cache.stats().hitCount());
+        metrics.gauge("dns.cache.misses", () -> cache.stats().missCount());
+        metrics.gauge("dns.cache.size", cache::size);
+    }
+
+    InetAddress[] lookup(String host) throws UnknownHostException {
+        try {
+            return cache.get(host);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException) e.getCause();
+            }
+            var ex = new UnknownHostException(host);
+            ex.initCause(e.getCause());
+            throw ex;
+        }
+    }
+
+    @Override
+    public void resolve(String host, int port, Promise<List<InetSocketAddress>> promise) {
+        try {
+            var result = new ArrayList<InetSocketAddress>();
+            for (var address : lookup(host)) {
+                if (isBlocked.test(address)) {
+                    throw new IOException(host + " refers to local/private address");
+                }
+                result.add(new InetSocketAddress(address, port));
+            }
+            promise.succeeded(result);
+        } catch (IOException e) {
+            promise.failed(e);
+        }
+    }
+}
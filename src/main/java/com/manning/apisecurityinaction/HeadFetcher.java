@@ -0,0 +1,206 @@
+package com.manning.apisecurityinaction;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.http.*;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.util.SocketAddressResolver;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.*;
+
+import com.manning.apisecurityinaction.controller.MetricsController;
+
+import static java.nio.charset.StandardCharsets.*;
+
+/**
+ * Fetches just the head section of HTML pages over a pooled, keep-alive
+ * HTTP client, one hop at a time so the caller can vet each redirect.
+ * A connection can only go back to the pool once the whole response has
+ * been read, so up to MAX_DRAIN_BYTES after the head are read and thrown
+ * away; a longer body aborts the connection instead.
+ */
+class HeadFetcher {
+    private static final int TIMEOUT_MILLIS = 3000;
+    private static final int MAX_HEAD_BYTES = 64 * 1024;
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+    private static final byte[] HEAD_END = "</head>".getBytes(US_ASCII);
+
+    private final HttpClient httpClient;
+    private final HostCircuitBreaker circuitBreaker;
+    private final LongAdder fetches;
+    private final LongAdder connectionsOpened;
+    private final LongAdder bodiesAborted;
+
+    HeadFetcher(SocketAddressResolver resolver, HostCircuitBreaker circuitBreaker,
+            MetricsController metrics) {
+        this.fetches = metrics.counter("preview.fetch.requests");
+        this.connectionsOpened = metrics.counter("preview.fetch.connections_opened");
+        this.bodiesAborted = metrics.counter("preview.fetch.bodies_aborted");
+        this.httpClient = startHttpClient(resolver, connectionsOpened);
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    HeadResponse fetch(URI uri) throws IOException {
+        var host = uri.getHost();
+        circuitBreaker.checkAllowed(host);
+
+        var start = System.nanoTime();
+        fetches.increment();
+        var listener = new InputStreamResponseListener();
+        httpClient.newRequest(uri)
+                .method(HttpMethod.GET)
+                .timeout(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .send(listener);
+
+        HeadResponse result;
+        int status;
+        try (var in = listener.getInputStream()) {
+            var res = listener.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            status = res.getStatus();
+            var location = res.getHeaders().get(HttpHeader.LOCATION);
+            var head = status / 100 == 2
+                    ? readHead(in, charset(res), MAX_HEAD_BYTES) : null;
+            result = new HeadResponse(location, head);
+            if (drain(in, MAX_DRAIN_BYTES)) {
+                // Returns once the connection is back in the pool
+                listener.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } else {
+                bodiesAborted.increment();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            circuitBreaker.recordFailure(host);
+            throw e.getCause() instanceof IOException
+                    ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (TimeoutException | IOException e) {
+            circuitBreaker.recordFailure(host);
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        circuitBreaker.recordSuccess(host, System.nanoTime() - start);
+
+        if (status / 100 == 3 && result.location == null) {
+            throw new IOException("redirect without Location header");
+        }
+        if (status / 100 != 2 && status / 100 != 3) {
+            throw new IOException("unexpected status " + status);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the document up to and including the closing head tag, giving
+     * up after maxBytes. Everything a preview needs lives in the head, so
+     * there is no point downloading or parsing the body.
+     */
+    static String readHead(InputStream in, Charset charset, int maxBytes)
+            throws IOException {
+        var buffer = new byte[maxBytes];
+        int length = 0;
+        while (length < maxBytes) {
+            int read = in.read(buffer, length, maxBytes - length);
+            if (read < 0) {
+                break;
+            }
+            var scanFrom = Math.max(0, length - HEAD_END.length + 1);
+            length += read;
+            var end = indexOfHeadEnd(buffer, scanFrom, length);
+            if (end >= 0) {
+                length = end;
+                break;
+            }
+        }
+        return new String(buffer, 0, length, charset);
+    }
+
+    /**
+     * Reads and discards the rest of the response, returning false if it is
+     * longer than maxBytes.
+     */
+    static boolean drain(InputStream in, int maxBytes) throws IOException {
+        var buffer = new byte[8192];
+        long remaining = maxBytes;
+        while (remaining >= 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining + 1));
+            if (read < 0) {
+                return true;
+            }
+            remaining -= read;
+        }
+        return false;
+    }
+
+    private static int indexOfHeadEnd(byte[] buffer, int from, int to) {
+        outer:
+        for (int i = from; i <= to - HEAD_END.length; ++i) {
+            for (int j = 0; j < HEAD_END.length; ++j) {
+                if (Character.toLowerCase(buffer[i + j]) != HEAD_END[j]) {
+                    continue outer;
+                }
+            }
+            return i + HEAD_END.length;
+        }
+        return -1;
+    }
+
+    private static Charset charset(Response response) {
+        var charset = MimeTypes.getCharsetFromContentType(
+                response.getHeaders().get(HttpHeader.CONTENT_TYPE));
+        try {
+            return charset == null ? UTF_8 : Charset.forName(charset);
+        } catch (IllegalArgumentException e) {
+            return UTF_8;
+        }
+    }
+
+    private static HttpClient startHttpClient(SocketAddressResolver resolver,
+            LongAdder connectionsOpened) {
+        var executor = new QueuedThreadPool();
+        executor.setName("link-preview-client");
+        executor.setDaemon(true);
+
+        var client = new HttpClient(new SslContextFactory.Client());
+        client.setExecutor(executor);
+        client.setScheduler(new ScheduledExecutorScheduler("link-preview-scheduler", true));
+        client.setSocketAddressResolver(resolver);
+        client.setFollowRedirects(false);
+        client.setConnectTimeout(TIMEOUT_MILLIS);
+        client.setIdleTimeout(Duration.ofSeconds(30).toMillis());
+        client.setMaxConnectionsPerDestination(16);
+        client.addBean(new Connection.Listener() {
+            @Override
+            public void onOpened(Connection connection) {
+                connectionsOpened.increment();
+            }
+
+            @Override
+            public void onClosed(Connection connection) {
+            }
+        });
+        try {
+            client.start();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return client;
+    }
+
+    static class HeadResponse {
+        final String location;
+        final String head;
+
+        HeadResponse(String location, String head) {
+            this.location = location;
+            this.head = head;
+        }
+    }
+}
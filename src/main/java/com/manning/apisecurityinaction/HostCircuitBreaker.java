@@ -0,0 +1,80 @@
+package com.manning.apisecurityinaction;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import com.google.common.cache.*;
+
+/**
+ * Stops fetching from hosts that keep failing or responding slowly. After
+ * a run of consecutive failures the host is rejected outright until the
+ * open period has passed, after which requests are let through again and
+ * the next failure reopens the circuit immediately.
+ */
+class HostCircuitBreaker {
+    private final int failureThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final Cache<String, HostState> hosts = CacheBuilder.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterAccess(Duration.ofHours(1))
+            .build();
+
+    HostCircuitBreaker(int failureThreshold, Duration slowCallThreshold,
+            Duration openDuration) {
+        this.failureThreshold = failureThreshold;
+        this.slowCallNanos = slowCallThreshold.toNanos();
+        this.openNanos = openDuration.toNanos();
+    }
+
+    void checkAllowed(String host) throws CircuitOpenException {
+        var state = hosts.getIfPresent(host);
+        if (state != null && state.isOpen(System.nanoTime())) {
+            throw new CircuitOpenException(host);
+        }
+    }
+
+    void recordSuccess(String host, long elapsedNanos) {
+        if (elapsedNanos > slowCallNanos) {
+            recordFailure(host);
+            return;
+        }
+        var state = hosts.getIfPresent(host);
+        if (state != null) {
+            state.reset();
+        }
+    }
+
+    void recordFailure(String host) {
+        hosts.asMap().computeIfAbsent(host, h -> new HostState())
+                .failed(System.nanoTime());
+    }
+
+    private class HostState {
+        private int consecutiveFailures;
+        private long openUntil;
+        private boolean open;
+
+        synchronized boolean isOpen(long now) {
+            return open && now - openUntil < 0;
+        }
+
+        synchronized void failed(long now) {
+            if (++consecutiveFailures >= failureThreshold) {
+                open = true;
+                openUntil = now + openNanos;
+            }
+        }
+
+        synchronized void reset() {
+            consecutiveFailures = 0;
+            open = false;
+        }
+    }
+
+    static class CircuitOpenException extends IOException {
+        CircuitOpenException(String host) {
+            super("too many slow or failed requests to " + host);
+        }
+    }
+}
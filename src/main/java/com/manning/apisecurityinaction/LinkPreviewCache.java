@@ -0,0 +1,112 @@
+package com.manning.apisecurityinaction;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.google.common.cache.*;
+
+/**
+ * Bounded cache of link previews keyed by normalized URL. Successful
+ * previews are kept for longer than failures, and concurrent requests for
+ * a URL that is not yet cached share a single fetch.
+ */
+public class LinkPreviewCache<T> {
+    private final Cache<String, Entry<T>> cache;
+    private final Duration successTtl;
+    private final Duration failureTtl;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public LinkPreviewCache(long maxEntries, Duration successTtl, Duration failureTtl) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(successTtl)
+                .build();
+        this.successTtl = successTtl;
+        this.failureTtl = failureTtl;
+    }
+
+    /**
+     * Returns the cached preview for the URL, calling the fetcher if there
+     * is none. A null or exceptional result is cached as a failure. Callers
+     * receive their own copy of the shared future so cancelling it does not
+     * affect other callers or the cached entry.
+     */
+    public CompletableFuture<T> get(String url,
+            Function<String, CompletableFuture<T>> fetcher) {
+        var created = new Entry<T>();
+        var entry = cache.asMap().compute(normalize(url),
+                (key, existing) -> existing != null && !existing.isExpired()
+                        ? existing : created);
+
+        if (entry != created) {
+            hits.increment();
+            return entry.future.copy();
+        }
+        misses.increment();
+
+        CompletableFuture<T> result;
+        try {
+            result = fetcher.apply(url);
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((value, error) -> {
+            var ttl = error == null && value != null ? successTtl : failureTtl;
+            entry.expiresAt = System.nanoTime() + ttl.toNanos();
+            entry.done = true;
+            if (error != null) {
+                entry.future.completeExceptionally(error);
+            } else {
+                entry.future.complete(value);
+            }
+        });
+        return entry.future.copy();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    static String normalize(String url) {
+        try {
+            var uri = URI.create(url.trim()).normalize();
+            var scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+            var host = uri.getHost().toLowerCase(Locale.ROOT);
+            var port = uri.getPort();
+            if (("http".equals(scheme) && port == 80) ||
+                    ("https".equals(scheme) && port == 443)) {
+                port = -1;
+            }
+            var path = uri.getRawPath() == null || uri.getRawPath().isEmpty()
+                    ? "/" : uri.getRawPath();
+            return new URI(scheme, null, host, port, null, null, null)
+                    + path
+                    + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+        } catch (Exception e) {
+            return url;
+        }
+    }
+
+    private static class Entry<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        volatile boolean done;
+        volatile long expiresAt;
+
+        boolean isExpired() {
+            return done && System.nanoTime() - expiresAt >= 0;
+        }
+    }
+}
@@ -2,19 +2,38 @@ package com.manning.apisecurityinaction;
 
 import java.io.IOException;
 import java.net.*;
-import java.util.Set;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
 
-import org.json.JSONObject;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.manning.apisecurityinaction.controller.MetricsController;
+import org.json.*;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.slf4j.*;
 import spark.ExceptionHandler;
 import static spark.Spark.*;
 
-import static org.jsoup.Connection.Method.GET;
 public class LinkPreviewer {
     private static final Logger logger = LoggerFactory.getLogger(LinkPreviewer.class);
 
+    // One instance serves every API replica, so this cache is shared by all of them
+    private static final LinkPreviewCache<JSONObject> previewCache =
+            new LinkPreviewCache<>(10_000, Duration.ofMinutes(30), Duration.ofMinutes(1));
+
+    private static final MetricsController metrics = new MetricsController();
+    private static final DnsCache dnsCache = new DnsCache(
+            Duration.ofSeconds(30), LinkPreviewer::isBlockedAddress, metrics);
+    private static final HeadFetcher headFetcher = new HeadFetcher(dnsCache,
+            new HostCircuitBreaker(5, Duration.ofSeconds(2), Duration.ofMinutes(1)), metrics);
+
+    private static final int MAX_BATCH_SIZE = 20;
+    private static final int BATCH_CONCURRENCY = 4;
+    private static final Duration BATCH_DEADLINE = Duration.ofSeconds(5);
+    private static final ExecutorService batchExecutor = Executors.newFixedThreadPool(32,
+            new ThreadFactoryBuilder().setNameFormat("preview-batch-%d").setDaemon(true).build());
+
     public static void main(String... args) {
         afterAfter((request, response) -> {
             response.type("application/json; charset=utf-8");
@@ -33,30 +52,25 @@ public class LinkPreviewer {
             }
         });
 
+        get("/metrics", metrics::readMetrics);
+
         get("/preview", (request, response) -> {
             var url = request.queryParams("url");
-            if (isBlockedAddress(url)) {
-                throw new IllegalArgumentException(
-                        "URL refers to local/private address");
+            checkUrl(url);
+            try {
+                return previewCache.get(url, LinkPreviewer::preview).join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof Exception
+                        ? (Exception) e.getCause() : e;
             }
-            var doc = fetch(url);
-            var title = doc.title();
-            var desc = doc.head()
-                    .selectFirst("meta[property='og:description']");
-            var img = doc.head()
-                    .selectFirst("meta[property='og:image']");
-
-            return new JSONObject()
-                    .put("url", doc.location())
-                    .putOpt("title", title)
-                    .putOpt("description",
-                            desc == null ? null : desc.attr("content"))
-                    .putOpt("image",
-                            img == null ? null : img.attr("content"));
         });
 
+        post("/previews", LinkPreviewer::previewBatch);
+
+        exception(HostCircuitBreaker.CircuitOpenException.class, handleException(503));
         exception(IllegalArgumentException.class, handleException(400));
         exception(MalformedURLException.class, handleException(400));
+        exception(JSONException.class, handleException(400));
         exception(Exception.class, handleException(502));
         exception(UnknownHostException.class, handleException(404));
     }
@@ -71,22 +85,140 @@ public class LinkPreviewer {
         };
     }
 
+    /**
+     * Previews up to MAX_BATCH_SIZE URLs in one call, fetching at most
+     * BATCH_CONCURRENCY of them at a time. Each URL maps to either its
+     * preview or an object holding the status a single preview request
+     * would have failed with, or 504 if it missed the batch deadline.
+     */
+    private static JSONObject previewBatch(spark.Request request, spark.Response response)
+            throws InterruptedException {
+        var array = new JSONArray(request.body());
+        var urls = new LinkedHashSet<String>();
+        for (int i = 0; i < array.length(); ++i) {
+            urls.add(array.getString(i));
+        }
+        if (urls.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("too many URLs");
+        }
+
+        var deadline = System.nanoTime() + BATCH_DEADLINE.toNanos();
+        var permits = new Semaphore(BATCH_CONCURRENCY);
+        var futures = new LinkedHashMap<String, CompletableFuture<JSONObject>>();
+        for (var url : urls) {
+            try {
+                checkUrl(url);
+            } catch (IllegalArgumentException e) {
+                futures.put(url, CompletableFuture.failedFuture(e));
+                continue;
+            }
+            if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                break;
+            }
+            var future = previewCache.get(url, u -> CompletableFuture
+                    .supplyAsync(() -> preview(u), batchExecutor)
+                    .thenCompose(f -> f));
+            future.whenComplete((preview, error) -> permits.release());
+            futures.put(url, future);
+        }
+        try {
+            CompletableFuture.allOf(futures.values().toArray(CompletableFuture[]::new))
+                    .get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // Reported per URL below
+        }
+
+        var result = new JSONObject();
+        for (var url : urls) {
+            var future = futures.get(url);
+            if (future == null || !future.isDone()) {
+                result.put(url, new JSONObject().put("status", 504));
+            } else if (future.isCompletedExceptionally()) {
+                var error = future.handle((preview, e) -> e).join();
+                var cause = error instanceof CompletionException ? error.getCause() : error;
+                logger.info("Preview of {} failed: {}", url, cause.toString());
+                result.put(url, new JSONObject().put("status", statusFor(cause)));
+            } else {
+                result.put(url, future.join());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rejects anything but an absolute http or https URL with a host, before
+     * it is used as a cache key or fetched.
+     */
+    static void checkUrl(String url) {
+        if (url == null) {
+            throw new IllegalArgumentException("missing url");
+        }
+        URI uri;
+        try {
+            uri = new URI(url.trim());
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("invalid url", e);
+        }
+        var scheme = uri.getScheme();
+        if (scheme == null || uri.getHost() == null ||
+                !(scheme.equalsIgnoreCase("http") || scheme.equalsIgnoreCase("https"))) {
+            throw new IllegalArgumentException("url must be an http or https URL");
+        }
+    }
+
+    private static int statusFor(Throwable error) {
+        if (error instanceof HostCircuitBreaker.CircuitOpenException) {
+            return 503;
+        } else if (error instanceof IllegalArgumentException ||
+                error instanceof MalformedURLException) {
+            return 400;
+        } else if (error instanceof UnknownHostException) {
+            return 404;
+        }
+        return 502;
+    }
+
+    private static CompletableFuture<JSONObject> preview(String url) {
+        try {
+            var doc = fetch(url);
+            var title = doc.title();
+            var desc = doc.head()
+                    .selectFirst("meta[property='og:description']");
+            var img = doc.head()
+                    .selectFirst("meta[property='og:image']");
+
+            return CompletableFuture.completedFuture(new JSONObject()
+                    .put("url", doc.location())
+                    .putOpt("title", title)
+                    .putOpt("description",
+                            desc == null ? null : desc.attr("content"))
+                    .putOpt("image",
+                            img == null ? null : img.attr("content")));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     private static boolean isBlockedAddress(String uri)
             throws UnknownHostException {
         var host = URI.create(uri).getHost();
-        for (var ipAddr : InetAddress.getAllByName(host)) {
-            if (ipAddr.isLoopbackAddress() ||
-                    ipAddr.isLinkLocalAddress() ||
-                    ipAddr.isSiteLocalAddress() ||
-                    ipAddr.isMulticastAddress() ||
-                    ipAddr.isAnyLocalAddress() ||
-                    isUniqueLocalAddress(ipAddr)) {
+        for (var ipAddr : dnsCache.lookup(host)) {
+            if (isBlockedAddress(ipAddr)) {
                 return true;
             }
         }
         return false;
     }
 
+    private static boolean isBlockedAddress(InetAddress ipAddr) {
+        return ipAddr.isLoopbackAddress() ||
+                ipAddr.isLinkLocalAddress() ||
+                ipAddr.isSiteLocalAddress() ||
+                ipAddr.isMulticastAddress() ||
+                ipAddr.isAnyLocalAddress() ||
+                isUniqueLocalAddress(ipAddr);
+    }
+
     private static boolean isUniqueLocalAddress(InetAddress ipAddr) {
         return ipAddr instanceof Inet6Address &&
                 (ipAddr.getAddress()[0] & 0xFF) == 0xFD &&
@@ -94,22 +226,18 @@ public class LinkPreviewer {
     }
 
     private static Document fetch(String url) throws IOException {
-        Document doc = null;
-        int retries = 0;
-        while (doc == null && retries++ < 10) {
+        for (int redirects = 0; redirects < 10; ++redirects) {
             if (isBlockedAddress(url)) {
                 throw new IllegalArgumentException(
                         "URL refers to local/private address");
             }
-            var res = Jsoup.connect(url).followRedirects(false).timeout(3000).method(GET).execute();
-            if (res.statusCode() / 100 == 3) {
-                url = res.header("Location");
-            } else {
-                doc = res.parse();
+            var uri = URI.create(url);
+            var res = headFetcher.fetch(uri);
+            if (res.location == null) {
+                return Jsoup.parse(res.head, url);
             }
+            url = uri.resolve(res.location).toString();
         }
-        if (doc == null)
-            throw new IOException("too many redirects");
-        return doc;
+        throw new IOException("too many redirects");
     }
-}
\ No newline at end of file
+}
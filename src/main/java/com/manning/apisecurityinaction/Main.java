@@ -28,6 +28,8 @@ import java.io.FileInputStream;
 import java.net.URI;
 import java.nio.file.*;
 import java.security.KeyStore;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
 
 import com.google.common.util.concurrent.*;
 
@@ -63,9 +65,32 @@ public class Main {
     var encKey = HKDF.expand(macKey, "token-encryption-key", 32, "AES");
 
     var capController = new CapabilityController(MacaroonTokenStore.wrap(new DatabaseTokenStore(database), macKey));
-    var spaceController = new SpaceController(database, capController);
+    var metricsController = new MetricsController();
+    var spaceController = new SpaceController(database, capController, metricsController,
+        Boolean.getBoolean("messages.log")
+            ? requiredDirectory("messages.log.dir")
+            : null);
     var userController = new UserController(database);
-    var auditController = new AuditController(database);
+    AuditSink auditSink;
+    if ("disk".equals(System.getProperty("audit.sink"))) {
+      auditSink = new SegmentedAuditLog(
+          requiredDirectory("audit.log.dir"),
+          64 * 1024 * 1024,
+          Duration.ofDays(Long.getLong("audit.retention.days", 30)),
+          metricsController);
+    } else {
+      auditSink = new AuditWriter(database, metricsController,
+          Integer.getInteger("audit.queue.capacity", 10_000),
+          AuditWriter.OverflowPolicy.valueOf(
+              System.getProperty("audit.overflow", "block").toUpperCase()),
+          Paths.get(System.getProperty("audit.spill.dir",
+              System.getProperty("java.io.tmpdir"))));
+    }
+    var rollups = new RequestRollups(database, metricsController);
+    var compression = new ResponseCompression(metricsController,
+        Integer.getInteger("http.gzip.threshold", 1024),
+        Integer.getInteger("http.gzip.level", 6));
+    var auditController = new AuditController(auditSink, rollups, compression);
 
     var rateLimiter = RateLimiter.create(2.0d);
 
@@ -84,17 +109,7 @@ public class Main {
       }
     }));
 
-    afterAfter((request, response) -> {
-      response.type("application/json;charset=utf-8");
-      response.header("X-Content-Type-Options", "nosniff");
-      response.header("X-Frame-Options", "DENY");
-      response.header("X-XSS-Protection", "0");
-      response.header("Cache-Control", "no-store");
-      response.header("Content-Security-Policy",
-          "default-src 'none'; frame-ancestors 'none'; sandbox");
-      response.header("Server", "");
-      response.header("Strict-Transport-Security", "max-age=31536000");
-    });
+    afterAfter(Main::addSecurityHeaders);
 
     SecureTokenStore tokenStore = new CookieTokenStore();
     var tokenController = new TokenController(tokenStore);
@@ -104,53 +119,103 @@ public class Main {
 
     before(auditController::auditRequestStart);
     afterAfter(auditController::auditRequestEnd);
+    // Last, so that it sees the final headers and writes the body itself
+    afterAfter(compression);
 
-    // var droolsController = new DroolsAccessController();
+    // var droolsController = new DroolsAccessController(metricsController);
+    // or, without the Drools runtime:
+    // var droolsController = new PolicyAccessController(metricsController);
     // before("/*", droolsController::enforcePolicy);
 
-    get("/logs", auditController::readAuditLog);
+    // Path-specific filters are compiled into one chain per route
+    var routes = new RoutePipelines(metricsController,
+        Boolean.getBoolean("pipeline.timing"));
+
+    // The audit log is streamed, so its headers are sent before afterAfter
+    routes.before("/logs", "securityHeaders", Main::addSecurityHeaders);
+    routes.get("/logs", auditController::readAuditLog);
+    routes.get("/logs/summary", rollups::readSummary);
 
-    post("/capabilities", capController::share);
+    routes.before("/metrics", "authenticated", userController::requireAuthentication);
+    routes.get("/metrics", metricsController::readMetrics);
 
-    before("/sessions", userController::requireAuthentication);
-    before("/sessions", tokenController.requireScope("POST", "full_access"));
-    post("/sessions", tokenController::login);
-    delete("/sessions", tokenController::logout);
+    routes.post("/capabilities", capController::share);
 
-    before("/expired_tokens", userController::requireAuthentication);
-    // delete("/expired_tokens", (request, response) -> {
+    routes.before("/sessions", "authenticated", userController::requireAuthentication);
+    routes.before("/sessions", "scope:full_access",
+        tokenController.requireScope("POST", "full_access"));
+    routes.post("/sessions", tokenController::login);
+    routes.delete("/sessions", tokenController::logout);
+
+    routes.before("/expired_tokens", "authenticated", userController::requireAuthentication);
+    // routes.delete("/expired_tokens", (request, response) -> {
     // databaseTokenStore.deleteExpiredTokens();
     // return new JSONObject();
     // });
 
-    post("/users", userController::registerUser);
-
-    before("/spaces", userController::requireAuthentication);
-    before("/spaces", tokenController.requireScope("POST", "create_space"));
-    post("/spaces", spaceController::createSpace);
-
-    before("/spaces/:spaceId/messages", capController::lookupPermissions);
-    before("/spaces/:spaceId/messages/*", capController::lookupPermissions);
-    before("/spaces/:spaceId/members", capController::lookupPermissions);
-
-    before("/spaces/*/messages", tokenController.requireScope("POST", "post_message"));
-    before("/spaces/:spaceId/messages", userController.requirePermission("POST", "w"));
-    post("/spaces/:spaceId/messages", spaceController::postMessage);
-
-    before("/spaces/*/messages/*", tokenController.requireScope("GET", "read_message"));
-    before("/spaces/:spaceId/messages/*", userController.requirePermission("GET", "r"));
-    get("/spaces/:spaceId/messages/:msgId", spaceController::readMessage);
-
-    before("/spaces/*/messages", tokenController.requireScope("GET", "list_messages"));
-    before("/spaces/:spaceId/messages", userController.requirePermission("GET", "r"));
-    get("/spaces/:spaceId/messages", spaceController::findMessages);
-
-    before("/spaces/*/members", tokenController.requireScope("POST", "add_member"));
-    before("/spaces/:spaceId/members", userController.requirePermission("POST", "rwd"));
-    post("/spaces/:spaceId/members", spaceController::addMember);
-
-    before("/spaces/*/messages/*", tokenController.requireScope("DELETE", "delete_message"));
-    before("/spaces/:spaceId/messages/*", userController.requirePermission("DELETE", "d"));
+    routes.post("/users", userController::registerUser);
+
+    routes.before("/spaces", "authenticated", userController::requireAuthentication);
+    routes.before("/spaces", "scope:create_space",
+        tokenController.requireScope("POST", "create_space"));
+    routes.post("/spaces", spaceController::createSpace);
+
+    routes.before("/spaces/:spaceId/messages", "lookupPermissions", capController::lookupPermissions);
+    routes.before("/spaces/:spaceId/messages/*", "lookupPermissions", capController::lookupPermissions);
+    routes.before("/spaces/:spaceId/members", "lookupPermissions", capController::lookupPermissions);
+
+    routes.before("/spaces/*/messages", "scope:post_message",
+        tokenController.requireScope("POST", "post_message"));
+    routes.before("/spaces/:spaceId/messages", "perms:POST:w",
+        userController.requirePermission("POST", "w"));
+    routes.post("/spaces/:spaceId/messages", spaceController::postMessage);
+
+    routes.before("/spaces/*/messages/batch", "scope:post_message",
+        tokenController.requireScope("POST", "post_message"));
+    routes.before("/spaces/:spaceId/messages/batch", "perms:POST:w",
+        userController.requirePermission("POST", "w"));
+    routes.post("/spaces/:spaceId/messages/batch", spaceController::postMessages);
+
+    routes.before("/spaces/*/messages/*", "scope:read_message",
+        tokenController.requireScope("GET", "read_message"));
+    routes.before("/spaces/:spaceId/messages/*", "perms:GET:r",
+        userController.requirePermission("GET", "r"));
+    routes.get("/spaces/:spaceId/messages/:msgId", spaceController::readMessage);
+
+    routes.before("/spaces/*/messages", "scope:list_messages",
+        tokenController.requireScope("GET", "list_messages"));
+    routes.before("/spaces/:spaceId/messages", "perms:GET:r",
+        userController.requirePermission("GET", "r"));
+    // Listing may turn into an event stream, whose headers are sent early
+    routes.before("/spaces/:spaceId/messages", "securityHeaders", Main::addSecurityHeaders);
+    routes.get("/spaces/:spaceId/messages", spaceController::findMessages);
+
+    routes.before("/spaces/*/members", "scope:add_member",
+        tokenController.requireScope("POST", "add_member"));
+    routes.before("/spaces/:spaceId/members", "perms:POST:rwd",
+        userController.requirePermission("POST", "rwd"));
+    routes.post("/spaces/:spaceId/members", spaceController::addMember);
+
+    routes.before("/spaces/:spaceId/retention", "lookupPermissions", capController::lookupPermissions);
+    routes.before("/spaces/*/retention", "scope:set_retention",
+        tokenController.requireScope("POST", "set_retention"));
+    routes.before("/spaces/:spaceId/retention", "perms:POST:rwd",
+        userController.requirePermission("POST", "rwd"));
+    routes.post("/spaces/:spaceId/retention", spaceController::setRetention);
+
+    routes.before("/spaces/:spaceId/stats", "lookupPermissions", capController::lookupPermissions);
+    routes.before("/spaces/*/stats", "scope:list_messages",
+        tokenController.requireScope("GET", "list_messages"));
+    routes.before("/spaces/:spaceId/stats", "perms:GET:r",
+        userController.requirePermission("GET", "r"));
+    routes.get("/spaces/:spaceId/stats", spaceController::readStats);
+
+    routes.before("/spaces/*/messages/*", "scope:delete_message",
+        tokenController.requireScope("DELETE", "delete_message"));
+    routes.before("/spaces/:spaceId/messages/*", "perms:DELETE:d",
+        userController.requirePermission("DELETE", "d"));
+
+    routes.install();
 
     internalServerError(new JSONObject()
         .put("error", "internal server error").toString());
@@ -159,6 +224,39 @@ public class Main {
 
     exception(IllegalArgumentException.class, Main::badRequest);
     exception(JSONException.class, Main::badRequest);
+    exception(DateTimeParseException.class, Main::badRequest);
+  }
+
+  // Also run as a before filter on some routes, so headers are set rather
+  // than added, and a Cache-Control chosen by the route is left alone
+  private static void addSecurityHeaders(Request request, Response response) {
+    var raw = response.raw();
+    response.type("application/json;charset=utf-8");
+    raw.setHeader("X-Content-Type-Options", "nosniff");
+    raw.setHeader("X-Frame-Options", "DENY");
+    raw.setHeader("X-XSS-Protection", "0");
+    if (!raw.containsHeader("Cache-Control")) {
+      raw.setHeader("Cache-Control", "no-store");
+    }
+    raw.setHeader("Content-Security-Policy",
+        "default-src 'none'; frame-ancestors 'none'; sandbox");
+    raw.setHeader("Server", "");
+    raw.setHeader("Strict-Transport-Security", "max-age=31536000");
+  }
+
+  /**
+   * A directory for data that must survive restarts. There is no default,
+   * because the working directory is read-only in the Kubernetes
+   * deployment and would not outlive the pod anyway; see
+   * kubernetes/natter-api-storage.yaml.
+   */
+  private static Path requiredDirectory(String property) {
+    var dir = System.getProperty(property);
+    if (dir == null || !Paths.get(dir).isAbsolute()) {
+      throw new IllegalStateException(property
+          + " must be set to an absolute path on a persistent volume");
+    }
+    return Paths.get(dir);
   }
 
   private static void badRequest(Exception ex,
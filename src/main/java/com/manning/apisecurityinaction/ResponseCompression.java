@@ -0,0 +1,223 @@
+package com.manning.apisecurityinaction;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import com.manning.apisecurityinaction.controller.MetricsController;
+import spark.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Gzips response bodies of at least a threshold size for clients that
+ * accept it. As an afterAfter filter it compresses the body a route
+ * returned and writes it itself, which commits the response so Spark
+ * does not serialize it again; routes that stream their output wrap the
+ * stream with {@link #open} instead.
+ */
+public class ResponseCompression implements Filter {
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final int threshold;
+    private final int level;
+    private final LongAdder compressedResponses;
+    private final LongAdder bytesSaved;
+    private final MetricsController.Timer cpuTimer;
+
+    public ResponseCompression(MetricsController metrics, int threshold, int level) {
+        this.threshold = threshold;
+        this.level = level;
+        this.compressedResponses = metrics.counter("http.gzip.responses");
+        this.bytesSaved = metrics.counter("http.gzip.bytes_saved");
+        this.cpuTimer = metrics.timer("http.gzip.cpu_time");
+    }
+
+    @Override
+    public void handle(Request request, Response response) throws IOException {
+        var raw = response.raw();
+        var body = response.body();
+        if (body == null || raw.isCommitted() || raw.containsHeader("Content-Encoding")
+                || "HEAD".equals(request.requestMethod())) {
+            return;
+        }
+        var bytes = body.getBytes(UTF_8);
+        if (bytes.length < threshold) {
+            return;
+        }
+        raw.addHeader("Vary", "Accept-Encoding");
+        if (!acceptsGzip(request)) {
+            return;
+        }
+
+        var start = cpuTime();
+        var compressed = new ByteArrayOutputStream(bytes.length / 4);
+        try (var gzip = gzip(compressed)) {
+            gzip.write(bytes);
+        }
+        recordCompression(start, bytes.length, compressed.size());
+
+        startCompressedResponse(response);
+        raw.setContentLength(compressed.size());
+        compressed.writeTo(raw.getOutputStream());
+        raw.flushBuffer();
+    }
+
+    /**
+     * Returns a stream for writing the response body, which switches to
+     * gzip once more than the threshold has been written. It must be
+     * closed to finish the response.
+     */
+    public OutputStream open(Request request, Response response) throws IOException {
+        var out = response.raw().getOutputStream();
+        if (!acceptsGzip(request) || "HEAD".equals(request.requestMethod())) {
+            return out;
+        }
+        return new ThresholdOutputStream(response, out);
+    }
+
+    private class ThresholdOutputStream extends OutputStream {
+        private final Response response;
+        private final OutputStream out;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private CountingOutputStream counter;
+        private GZIPOutputStream gzip;
+        private long written;
+        private long cpuNanos;
+
+        ThresholdOutputStream(Response response, OutputStream out) {
+            this.response = response;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            written += len;
+            if (gzip == null) {
+                buffer.write(bytes, off, len);
+                if (buffer.size() < threshold) {
+                    return;
+                }
+                response.raw().addHeader("Vary", "Accept-Encoding");
+                startCompressedResponse(response);
+                counter = new CountingOutputStream(out);
+                var start = cpuTime();
+                gzip = gzip(counter);
+                buffer.writeTo(gzip);
+                cpuNanos += cpuTime() - start;
+                buffer = null;
+                return;
+            }
+            var start = cpuTime();
+            gzip.write(bytes, off, len);
+            cpuNanos += cpuTime() - start;
+        }
+
+        // Flushing before the threshold is reached would commit the
+        // response before we know whether to compress, so it waits
+        @Override
+        public void flush() throws IOException {
+            if (gzip != null) {
+                gzip.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (gzip == null) {
+                buffer.writeTo(out);
+                out.close();
+                return;
+            }
+            var start = cpuTime();
+            gzip.finish();
+            cpuNanos += cpuTime() - start;
+            compressedResponses.increment();
+            bytesSaved.add(written - counter.count);
+            cpuTimer.recordNanos(cpuNanos);
+            gzip.close();
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            out.write(bytes, off, len);
+            count += len;
+        }
+    }
+
+    private GZIPOutputStream gzip(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, 8192, true) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    private static void startCompressedResponse(Response response) {
+        var raw = response.raw();
+        raw.setHeader("Content-Encoding", "gzip");
+        // Byte-for-byte different from the uncompressed response, but the
+        // same content, which is what a weak tag promises
+        var etag = raw.getHeader("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            raw.setHeader("ETag", "W/" + etag);
+        }
+    }
+
+    private void recordCompression(long cpuStart, long in, long out) {
+        compressedResponses.increment();
+        bytesSaved.add(in - out);
+        cpuTimer.recordNanos(cpuTime() - cpuStart);
+    }
+
+    private static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported()
+                ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    static boolean acceptsGzip(Request request) {
+        var accept = request.headers("Accept-Encoding");
+        if (accept == null) {
+            return false;
+        }
+        for (var coding : accept.split(",")) {
+            var parts = coding.split(";");
+            var name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; ++i) {
+                var param = parts[i].trim();
+                try {
+                    if (param.startsWith("q=") && Double.parseDouble(param.substring(2)) == 0) {
+                        return false;
+                    }
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,186 @@
+package com.manning.apisecurityinaction;
+
+import java.io.InputStream;
+import java.util.*;
+
+import org.slf4j.*;
+
+import com.manning.apisecurityinaction.controller.MetricsController;
+import spark.*;
+
+/**
+ * Collects path-specific before filters and routes, then registers each
+ * route with Spark as a single handler that runs just the filters whose
+ * paths match it, in registration order, followed by the route. Matching
+ * filters to routes happens once, at startup, instead of Spark testing
+ * every filter pattern on every request.
+ * <p>
+ * Filter paths follow Spark's syntax: {@code :name} and {@code *} match a
+ * single segment, and a trailing {@code *} matches the rest of the path.
+ * Filters that match no route are registered with Spark as ordinary
+ * before filters, so unrouted paths behave as they did before.
+ * <p>
+ * Each handler sets the {@code route} request attribute to its
+ * route's path template, so that after filters can group requests by route.
+ */
+class RoutePipelines {
+    private static final Logger logger = LoggerFactory.getLogger(RoutePipelines.class);
+
+    private final MetricsController metrics;
+    private final boolean timeStages;
+    private final List<Stage> filters = new ArrayList<>();
+    private final List<Endpoint> endpoints = new ArrayList<>();
+
+    RoutePipelines(MetricsController metrics, boolean timeStages) {
+        this.metrics = metrics;
+        this.timeStages = timeStages;
+    }
+
+    /**
+     * Adds a filter for routes matching the path. Stages with the same
+     * name are assumed to do the same thing.
+     */
+    void before(String path, String name, Filter filter) {
+        filters.add(new Stage(path, name, filter));
+    }
+
+    void get(String path, Route route) {
+        endpoints.add(new Endpoint("GET", path, route));
+    }
+
+    void post(String path, Route route) {
+        endpoints.add(new Endpoint("POST", path, route));
+    }
+
+    void delete(String path, Route route) {
+        endpoints.add(new Endpoint("DELETE", path, route));
+    }
+
+    void install() {
+        var unused = new LinkedHashSet<>(filters);
+        for (var endpoint : endpoints) {
+            var chain = new ArrayList<Stage>();
+            for (var stage : filters) {
+                if (!matches(stage.path, endpoint.path)) {
+                    continue;
+                }
+                unused.remove(stage);
+                // A stage registered under overlapping paths only runs once
+                if (chain.stream().noneMatch(s -> s.name.equals(stage.name))) {
+                    chain.add(stage);
+                }
+            }
+            logger.info("{} {} -> {}", endpoint.method, endpoint.path,
+                    chain.stream().map(s -> s.name).toArray());
+
+            var handler = timeStages ? timed(endpoint, chain) : untimed(endpoint, chain);
+            switch (endpoint.method) {
+                case "GET": Spark.get(endpoint.path, handler); break;
+                case "POST": Spark.post(endpoint.path, handler); break;
+                case "DELETE": Spark.delete(endpoint.path, handler); break;
+                default: throw new IllegalStateException(endpoint.method);
+            }
+        }
+        for (var stage : unused) {
+            Spark.before(stage.path, stage.filter);
+        }
+    }
+
+    private static Route untimed(Endpoint endpoint, List<Stage> chain) {
+        var stages = chain.stream().map(s -> s.filter).toArray(Filter[]::new);
+        var route = endpoint.route;
+        var path = endpoint.path;
+        return (request, response) -> {
+            request.attribute("route", path);
+            for (var filter : stages) {
+                filter.handle(request, response);
+            }
+            return toBody(route.handle(request, response));
+        };
+    }
+
+    private Route timed(Endpoint endpoint, List<Stage> chain) {
+        var prefix = "route." + endpoint.method + " " + endpoint.path + ".";
+        var stages = chain.stream().map(s -> s.filter).toArray(Filter[]::new);
+        var timers = chain.stream().map(s -> metrics.timer(prefix + s.name))
+                .toArray(MetricsController.Timer[]::new);
+        var routeTimer = metrics.timer(prefix + "handler");
+        var route = endpoint.route;
+        var path = endpoint.path;
+        return (request, response) -> {
+            request.attribute("route", path);
+            for (int i = 0; i < stages.length; ++i) {
+                var start = System.nanoTime();
+                try {
+                    stages[i].handle(request, response);
+                } finally {
+                    timers[i].recordNanos(System.nanoTime() - start);
+                }
+            }
+            var start = System.nanoTime();
+            try {
+                return toBody(route.handle(request, response));
+            } finally {
+                routeTimer.recordNanos(System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * Renders a result the way Spark's default serializer would, but as a
+     * String, which Spark makes available to after filters as the
+     * response body.
+     */
+    private static Object toBody(Object result) {
+        if (result == null || result instanceof byte[] || result instanceof InputStream) {
+            return result;
+        }
+        return result.toString();
+    }
+
+    /**
+     * Whether a filter path applies to every request a route template can
+     * match.
+     */
+    static boolean matches(String filterPath, String routePath) {
+        var filter = filterPath.split("/");
+        var route = routePath.split("/");
+        for (int i = 0; i < filter.length; ++i) {
+            if (i == filter.length - 1 && filter[i].equals("*")) {
+                return route.length >= filter.length;
+            }
+            if (i >= route.length) {
+                return false;
+            }
+            var wildcard = filter[i].equals("*") || filter[i].startsWith(":");
+            if (!wildcard && !filter[i].equals(route[i])) {
+                return false;
+            }
+        }
+        return filter.length == route.length;
+    }
+
+    private static class Stage {
+        final String path;
+        final String name;
+        final Filter filter;
+
+        Stage(String path, String name, Filter filter) {
+            this.path = path;
+            this.name = name;
+            this.filter = filter;
+        }
+    }
+
+    private static class Endpoint {
+        final String method;
+        final String path;
+        final Route route;
+
+        Endpoint(String method, String path, Route route) {
+            this.method = method;
+            this.path = path;
+            this.route = route;
+        }
+    }
+}
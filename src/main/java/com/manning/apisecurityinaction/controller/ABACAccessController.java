@@ -1,30 +1,49 @@
 package com.manning.apisecurityinaction.controller;
 
+import java.time.Duration;
 import java.time.LocalTime;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.cache.*;
 import spark.*;
 import static spark.Spark.halt;
 
 public abstract class ABACAccessController {
-    public void enforcePolicy(Request request, Response response) {
-
-        var subjectAttrs = new HashMap<String, Object>();
-        subjectAttrs.put("user", request.attribute("subject"));
-        subjectAttrs.put("groups", request.attribute("groups"));
+    private final Cache<DecisionKey, Boolean> decisions = CacheBuilder.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterWrite(Duration.ofHours(1))
+            .recordStats()
+            .build();
+    private final AtomicInteger generation = new AtomicInteger();
 
-        var resourceAttrs = new HashMap<String, Object>();
-        resourceAttrs.put("path", request.pathInfo());
-        resourceAttrs.put("space", request.params(":spaceId"));
+    protected ABACAccessController(MetricsController metrics) {
+        metrics.gauge("abac.decision_cache.hits", () -> decisions.stats().hitCount());
+        metrics.gauge("abac.decision_cache.misses", () -> decisions.stats().missCount());
+        metrics.gauge("abac.decision_cache.hit_ratio_percent",
+                () -> Math.round(decisions.stats().hitRate() * 100));
+        metrics.gauge("abac.decision_cache.size", decisions::size);
+    }
 
-        var actionAttrs = new HashMap<String, Object>();
-        actionAttrs.put("method", request.requestMethod());
+    public void enforcePolicy(Request request, Response response) {
 
-        var envAttrs = new HashMap<String, Object>();
-        envAttrs.put("timeOfDay", LocalTime.now().withHour(23));
-        envAttrs.put("ip", request.ip());
+        var subject = new Subject(request.attribute("subject"),
+                request.attribute("groups"));
+        var resource = new Resource(request.pathInfo(),
+                request.params(":spaceId"));
+        var action = new Action(request.requestMethod());
+        var env = new Environment(LocalTime.now().withHour(23), request.ip());
 
-        var permitted = checkPermitted(subjectAttrs, resourceAttrs, actionAttrs, envAttrs);
+        // Decisions only depend on the attributes in the key, so the rules
+        // only need to run the first time a combination is seen. The key
+        // includes the generation read before evaluating, so a decision made
+        // with rules replaced meanwhile is cached where no one looks it up.
+        var key = new DecisionKey(generation.get(), subject, resource, action, env);
+        var permitted = decisions.getIfPresent(key);
+        if (permitted == null) {
+            permitted = checkPermitted(subject, resource, action, env);
+            decisions.put(key, permitted);
+        }
 
         if (!permitted) {
             halt(403);
@@ -32,10 +51,21 @@ public abstract class ABACAccessController {
     }
 
     abstract boolean checkPermitted(
-            Map<String, Object> subject,
-            Map<String, Object> resource,
-            Map<String, Object> action,
-            Map<String, Object> env);
+            Subject subject,
+            Resource resource,
+            Action action,
+            Environment env);
+
+    /**
+     * Forgets all cached decisions. Call this whenever the rules change,
+     * after the new rules are in place.
+     * Group membership is part of the key, so changes to it take effect on
+     * the next request anyway.
+     */
+    public void invalidateDecisions() {
+        generation.incrementAndGet();
+        decisions.invalidateAll();
+    }
 
     public static class Decision {
         private boolean permit = true;
@@ -51,4 +81,114 @@ public abstract class ABACAccessController {
             return permit;
         }
     }
-}
\ No newline at end of file
+
+    public static class Subject {
+        private final String user;
+        private final List<String> groups;
+
+        public Subject(String user, List<String> groups) {
+            this.user = user;
+            this.groups = groups == null ? List.of() : groups;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public List<String> getGroups() {
+            return groups;
+        }
+    }
+
+    public static class Resource {
+        private final String path;
+        private final String space;
+
+        public Resource(String path, String space) {
+            this.path = path;
+            this.space = space;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getSpace() {
+            return space;
+        }
+    }
+
+    public static class Action {
+        private final String method;
+
+        public Action(String method) {
+            this.method = method;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+    }
+
+    public static class Environment {
+        private final LocalTime timeOfDay;
+        private final String ip;
+
+        public Environment(LocalTime timeOfDay, String ip) {
+            this.timeOfDay = timeOfDay;
+            this.ip = ip;
+        }
+
+        public LocalTime getTimeOfDay() {
+            return timeOfDay;
+        }
+
+        public String getIp() {
+            return ip;
+        }
+    }
+
+    /**
+     * The attributes the rules read, normalized so that requests that must
+     * get the same decision share a key: groups ignore order and the time
+     * is bucketed to the hour. Rules must not depend on anything else, such
+     * as the full path or the client IP, without adding it here.
+     */
+    private static class DecisionKey {
+        private final int generation;
+        private final String user;
+        private final Set<String> groups;
+        private final String space;
+        private final String method;
+        private final int hour;
+
+        DecisionKey(int generation, Subject subject, Resource resource,
+                Action action, Environment env) {
+            this.generation = generation;
+            this.user = subject.getUser();
+            this.groups = Set.copyOf(subject.getGroups());
+            this.space = resource.getSpace();
+            this.method = action.getMethod();
+            this.hour = env.getTimeOfDay().getHour();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof DecisionKey)) {
+                return false;
+            }
+            var that = (DecisionKey) other;
+            return generation == that.generation
+                    && hour == that.hour
+                    && Objects.equals(user, that.user)
+                    && groups.equals(that.groups)
+                    && Objects.equals(space, that.space)
+                    && Objects.equals(method, that.method);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(generation, user, groups, space, method, hour);
+        }
+    }
+}
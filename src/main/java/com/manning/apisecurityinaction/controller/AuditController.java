@@ -1,66 +1,99 @@
 package com.manning.apisecurityinaction.controller;
 
-import org.dalesbred.*;
-import org.json.*;
+import com.manning.apisecurityinaction.ResponseCompression;
 import spark.*;
 
-import java.sql.*;
+import java.io.*;
 import java.time.*;
 import java.time.temporal.*;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 public class AuditController {
+  private static final int DEFAULT_PAGE_SIZE = 20;
+  private static final int MAX_PAGE_SIZE = 1000;
 
-  private final Database database;
+  private final AuditSink auditSink;
+  private final RequestRollups rollups;
+  private final ResponseCompression compression;
 
-  public AuditController(Database database) {
-    this.database = database;
+  public AuditController(AuditSink auditSink, RequestRollups rollups,
+      ResponseCompression compression) {
+    this.auditSink = auditSink;
+    this.rollups = rollups;
+    this.compression = compression;
   }
 
   public void auditRequestStart(Request request, Response response) {
-    database.withVoidTransaction(tx -> {
-      var auditId = database.findUniqueLong(
-          "SELECT NEXT VALUE FOR audit_id_seq");
-      request.attribute("audit_id", auditId);
-      database.updateUnique(
-          "INSERT INTO audit_log(audit_id, method, path, " +
-              "user_id, audit_time) " +
-              "VALUES(?, ?, ?, ?, current_timestamp)",
-          auditId,
-          request.requestMethod(),
-          request.pathInfo(),
-          request.attribute("subject"));
-    });
+    var auditId = auditSink.nextAuditId();
+    request.attribute("audit_id", auditId);
+    request.attribute("audit_start", System.nanoTime());
+    auditSink.write(new AuditEvent(auditId,
+        request.requestMethod(),
+        request.pathInfo(),
+        request.attribute("subject"),
+        null,
+        Instant.now().truncatedTo(ChronoUnit.MILLIS)));
   }
 
   public void auditRequestEnd(Request request, Response response) {
-    database.updateUnique(
-        "INSERT INTO audit_log(audit_id, method, path, status, " +
-            "user_id, audit_time) " +
-            "VALUES(?, ?, ?, ?, ?, current_timestamp)",
-        request.attribute("audit_id"),
+    Long start = request.attribute("audit_start");
+    rollups.record(request.requestMethod(), request.attribute("route"),
+        response.status(), start != null ? System.nanoTime() - start : null);
+
+    // Requests halted before auditRequestStart still get their own id, so
+    // that every event can be paged through by (time, id, status)
+    Long auditId = request.attribute("audit_id");
+    auditSink.write(new AuditEvent(
+        auditId != null ? auditId : auditSink.nextAuditId(),
         request.requestMethod(),
         request.pathInfo(),
+        request.attribute("subject"),
         response.status(),
-        request.attribute("subject"));
+        Instant.now().truncatedTo(ChronoUnit.MILLIS)));
   }
 
-  public JSONArray readAuditLog(Request request, Response response) {
-    var since = Instant.now().minus(1, ChronoUnit.HOURS);
-    var logs = database.findAll(AuditController::recordToJson,
-        "SELECT * FROM audit_log " +
-            "WHERE audit_time >= ? LIMIT 20",
-        since);
-    return new JSONArray(logs);
-  }
+  /**
+   * Writes matching audit events as a JSON array directly to the response
+   * as they are read. Each event includes a cursor; pass the last one as
+   * {@code after} to get the next page.
+   */
+  public String readAuditLog(Request request, Response response)
+      throws IOException {
+    var query = new AuditQuery(
+        request.queryParams("since") != null
+            ? Instant.parse(request.queryParams("since"))
+            : Instant.now().minus(1, ChronoUnit.HOURS),
+        request.queryParams("until") != null
+            ? Instant.parse(request.queryParams("until"))
+            : null,
+        request.queryParams("user"),
+        request.queryParams("path"),
+        request.queryParams("status") != null
+            ? Integer.valueOf(request.queryParams("status"))
+            : null,
+        request.queryParams("after"),
+        Math.min(MAX_PAGE_SIZE, request.queryParams("limit") != null
+            ? Integer.parseInt(request.queryParams("limit"))
+            : DEFAULT_PAGE_SIZE));
+    if (query.limit < 1) {
+      throw new IllegalArgumentException("invalid limit");
+    }
 
-  private static JSONObject recordToJson(ResultSet row)
-      throws SQLException {
-    return new JSONObject()
-        .put("id", row.getLong("audit_id"))
-        .put("method", row.getString("method"))
-        .put("path", row.getString("path"))
-        .put("status", row.getInt("status"))
-        .put("user", row.getString("user_id"))
-        .put("time", row.getTimestamp("audit_time").toInstant());
+    response.type("application/json;charset=utf-8");
+    var out = new BufferedWriter(new OutputStreamWriter(
+        compression.open(request, response), UTF_8));
+    out.write('[');
+    var first = new boolean[] { true };
+    auditSink.query(query, (event, cursor) -> {
+      if (!first[0]) {
+        out.write(',');
+      }
+      first[0] = false;
+      out.write(event.toJson().put("cursor", cursor).toString());
+    });
+    out.write(']');
+    out.close();
+    return "";
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.time.Instant;
+
+import org.json.JSONObject;
+
+public class AuditEvent {
+  final Long auditId;
+  final String method;
+  final String path;
+  final String userId;
+  final Integer status;
+  final Instant time;
+
+  AuditEvent(Long auditId, String method, String path, String userId,
+      Integer status, Instant time) {
+    this.auditId = auditId;
+    this.method = method;
+    this.path = path;
+    this.userId = userId;
+    this.status = status;
+    this.time = time;
+  }
+
+  JSONObject toJson() {
+    return new JSONObject()
+        .putOpt("id", auditId)
+        .put("method", method)
+        .put("path", path)
+        .putOpt("status", status)
+        .putOpt("user", userId)
+        .put("time", time);
+  }
+
+  static AuditEvent fromJson(JSONObject json) {
+    return new AuditEvent(json.has("id") ? json.getLong("id") : null,
+        json.getString("method"),
+        json.getString("path"), json.optString("user", null),
+        json.has("status") ? json.getInt("status") : null,
+        Instant.parse(json.getString("time")));
+  }
+}
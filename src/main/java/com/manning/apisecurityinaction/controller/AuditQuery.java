@@ -0,0 +1,37 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.time.Instant;
+
+/**
+ * Filters for reading the audit log. Null fields match everything. Results
+ * come back in a stable order and each carries a cursor, which can be
+ * passed back as {@code after} to fetch the next page.
+ */
+public class AuditQuery {
+  final Instant since;
+  final Instant until;
+  final String userId;
+  final String pathPrefix;
+  final Integer status;
+  final String after;
+  final int limit;
+
+  AuditQuery(Instant since, Instant until, String userId, String pathPrefix,
+      Integer status, String after, int limit) {
+    this.since = since;
+    this.until = until;
+    this.userId = userId;
+    this.pathPrefix = pathPrefix;
+    this.status = status;
+    this.after = after;
+    this.limit = limit;
+  }
+
+  boolean matches(AuditEvent event) {
+    return (since == null || !event.time.isBefore(since))
+        && (until == null || event.time.isBefore(until))
+        && (userId == null || userId.equals(event.userId))
+        && (pathPrefix == null || event.path.startsWith(pathPrefix))
+        && (status == null || status.equals(event.status));
+  }
+}
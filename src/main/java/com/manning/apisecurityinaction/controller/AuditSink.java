@@ -0,0 +1,23 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.io.IOException;
+
+/**
+ * Somewhere to record audit events, such as the audit_log table or a
+ * local append-only log.
+ */
+public interface AuditSink {
+  long nextAuditId();
+
+  void write(AuditEvent event);
+
+  /**
+   * Passes up to query.limit matching events to the handler as they are
+   * read, in the sink's stable order, along with a cursor for each.
+   */
+  void query(AuditQuery query, EventHandler handler) throws IOException;
+
+  interface EventHandler {
+    void handle(AuditEvent event, String cursor) throws IOException;
+  }
+}
@@ -0,0 +1,366 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.dalesbred.Database;
+import org.json.JSONObject;
+import org.slf4j.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Writes audit events to the audit_log table from a background thread,
+ * taking them off a bounded queue and inserting them with JDBC batches.
+ * What happens when the queue is full is decided by the overflow policy.
+ */
+public class AuditWriter implements AuditSink {
+  private static final Logger logger = LoggerFactory.getLogger(AuditWriter.class);
+
+  private static final int MAX_BATCH_SIZE = 500;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long MIN_LOAD_BACKOFF_MILLIS = 1000;
+  private static final long MAX_LOAD_BACKOFF_MILLIS = 60_000;
+
+  public enum OverflowPolicy {
+    /** Wait for the writer to make room, slowing down requests. */
+    BLOCK,
+    /**
+     * Discard the event and count it. Requests are then no longer all
+     * audited, so this must be chosen explicitly.
+     */
+    DROP,
+    /** Append the event to a local file, loaded once the queue drains. */
+    SPILL
+  }
+
+  private final Database database;
+  private final IdAllocator auditIds;
+  private final OverflowPolicy overflowPolicy;
+  private final Path spillFile;
+  private final Queue<AuditEvent> queue = new ConcurrentLinkedQueue<>();
+  private final Semaphore capacity;
+  private final Object spillLock = new Object();
+
+  private final LongAdder dropped;
+  private final LongAdder spilled;
+  private final LongAdder written;
+  private final LongAdder writeErrors;
+  private final LongAdder spillRejected;
+  private final MetricsController.Timer writeTimer;
+  private volatile int lastBatchSize;
+
+  // Only touched by the writer thread. Lines at the start of the loading
+  // file already inserted, and when to next try loading it.
+  private long spillLinesLoaded;
+  private long loadBackoffMillis;
+  private long nextLoadMillis;
+
+  public AuditWriter(Database database, MetricsController metrics,
+      int queueCapacity, OverflowPolicy overflowPolicy, Path spillDir) {
+    this.database = database;
+    this.auditIds = new IdAllocator(database, "audit_id_seq", 1000);
+    this.overflowPolicy = overflowPolicy;
+    this.spillFile = spillDir.resolve("audit-spill.jsonl");
+    this.capacity = new Semaphore(queueCapacity);
+
+    this.dropped = metrics.counter("audit.dropped");
+    this.spilled = metrics.counter("audit.spilled");
+    this.written = metrics.counter("audit.written");
+    this.writeErrors = metrics.counter("audit.write_errors");
+    this.spillRejected = metrics.counter("audit.spill_rejected");
+    this.writeTimer = metrics.timer("audit.write.latency");
+    metrics.gauge("audit.queue_depth", () -> queueCapacity - capacity.availablePermits());
+    metrics.gauge("audit.last_batch_size", () -> lastBatchSize);
+
+    var writerThread = new Thread(this::run, "audit-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+  }
+
+  @Override
+  public long nextAuditId() {
+    return auditIds.nextId();
+  }
+
+  @Override
+  public void query(AuditQuery query, EventHandler handler) throws IOException {
+    var sql = new StringBuilder("SELECT * FROM audit_log WHERE 1 = 1");
+    var args = new ArrayList<Object>();
+    if (query.since != null) {
+      sql.append(" AND audit_time >= ?");
+      args.add(query.since);
+    }
+    if (query.until != null) {
+      sql.append(" AND audit_time < ?");
+      args.add(query.until);
+    }
+    if (query.userId != null) {
+      sql.append(" AND user_id = ?");
+      args.add(query.userId);
+    }
+    if (query.pathPrefix != null) {
+      sql.append(" AND path LIKE ? ESCAPE '\\'");
+      args.add(query.pathPrefix.replaceAll("[\\\\%_]", "\\\\$0") + "%");
+    }
+    if (query.status != null) {
+      sql.append(" AND status = ?");
+      args.add(query.status);
+    }
+    if (query.after != null) {
+      // Keyset pagination on (audit_time, audit_id, status). The start and
+      // end events of a request share an audit_id, and the start event has
+      // no status so it sorts first. The leading audit_time >= ? is
+      // redundant but lets the index range scan start at the cursor.
+      var cursor = query.after.split("\\.", 3);
+      if (cursor.length < 2) {
+        throw new IllegalArgumentException("invalid cursor");
+      }
+      var time = Instant.ofEpochMilli(Long.parseLong(cursor[0]));
+      var auditId = Long.parseLong(cursor[1]);
+      sql.append(" AND audit_time >= ? AND (audit_time > ? OR (audit_time = ?" +
+          " AND (audit_id > ? OR (audit_id = ? AND ");
+      args.addAll(List.of(time, time, time, auditId, auditId));
+      if (cursor.length < 3) {
+        sql.append("status IS NOT NULL");
+      } else {
+        sql.append("status > ?");
+        args.add(Integer.parseInt(cursor[2]));
+      }
+      sql.append("))))");
+    }
+    sql.append(" ORDER BY audit_time, audit_id, status LIMIT ?");
+    args.add(query.limit);
+
+    try {
+      database.executeQuery(rows -> {
+        while (rows.next()) {
+          var event = readEvent(rows);
+          var cursor = event.time.toEpochMilli() + "." + event.auditId
+              + (event.status == null ? "" : "." + event.status);
+          try {
+            handler.handle(event, cursor);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }
+        return null;
+      }, sql.toString(), args.toArray());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static AuditEvent readEvent(ResultSet row) throws SQLException {
+    var auditId = row.getLong("audit_id");
+    var hasAuditId = !row.wasNull();
+    var status = row.getInt("status");
+    var hasStatus = !row.wasNull();
+    return new AuditEvent(hasAuditId ? auditId : null,
+        row.getString("method"),
+        row.getString("path"),
+        row.getString("user_id"),
+        hasStatus ? status : null,
+        row.getTimestamp("audit_time").toInstant());
+  }
+
+  @Override
+  public void write(AuditEvent event) {
+    if (capacity.tryAcquire()) {
+      queue.add(event);
+      return;
+    }
+    switch (overflowPolicy) {
+      case BLOCK:
+        capacity.acquireUninterruptibly();
+        queue.add(event);
+        break;
+      case SPILL:
+        spill(List.of(event));
+        break;
+      default:
+        dropped.increment();
+    }
+  }
+
+  private void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        if (!writeBatch()) {
+          loadSpilledEvents();
+          LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+      } catch (RuntimeException e) {
+        // The writer must keep going, or the queue fills and every later
+        // event is dropped or spilled
+        logger.error("Audit writer failed", e);
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+    }
+  }
+
+  private void flush() {
+    while (writeBatch()) {
+      // Keep going until the queue is empty
+    }
+  }
+
+  private synchronized boolean writeBatch() {
+    var batch = new ArrayList<AuditEvent>();
+    AuditEvent event;
+    while (batch.size() < MAX_BATCH_SIZE && (event = queue.poll()) != null) {
+      batch.add(event);
+    }
+    if (batch.isEmpty()) {
+      return false;
+    }
+    capacity.release(batch.size());
+    insert(batch);
+    return true;
+  }
+
+  private void insert(List<AuditEvent> batch) {
+    if (!tryInsert(batch) && overflowPolicy == OverflowPolicy.SPILL) {
+      spill(batch);
+    }
+  }
+
+  private boolean tryInsert(List<AuditEvent> batch) {
+    var start = System.nanoTime();
+    try {
+      database.withVoidTransaction(tx -> {
+        try (var stmt = tx.getConnection().prepareStatement(
+            "INSERT INTO audit_log(audit_id, method, path, status, " +
+                "user_id, audit_time) VALUES(?, ?, ?, ?, ?, ?)")) {
+          for (var e : batch) {
+            stmt.setObject(1, e.auditId, Types.BIGINT);
+            stmt.setString(2, e.method);
+            stmt.setString(3, e.path);
+            stmt.setObject(4, e.status, Types.INTEGER);
+            stmt.setString(5, e.userId);
+            stmt.setTimestamp(6, Timestamp.from(e.time));
+            stmt.addBatch();
+          }
+          stmt.executeBatch();
+        }
+      });
+      written.add(batch.size());
+      lastBatchSize = batch.size();
+      return true;
+    } catch (RuntimeException e) {
+      writeErrors.increment();
+      logger.error("Failed to write {} audit events", batch.size(), e);
+      return false;
+    } finally {
+      writeTimer.recordNanos(System.nanoTime() - start);
+    }
+  }
+
+  private void spill(List<AuditEvent> events) {
+    synchronized (spillLock) {
+      try (var out = Files.newBufferedWriter(spillFile, UTF_8, CREATE, APPEND)) {
+        for (var event : events) {
+          out.write(event.toJson().toString());
+          out.newLine();
+        }
+        spilled.add(events.size());
+      } catch (IOException e) {
+        dropped.add(events.size());
+        logger.error("Unable to spill audit events to {}", spillFile, e);
+      }
+    }
+  }
+
+  /**
+   * Loads spilled events into the table. If an insert fails, the loading
+   * file is left where it is and loading is retried from the same line
+   * after a backoff, instead of the events being spilled again.
+   */
+  private void loadSpilledEvents() {
+    if (overflowPolicy != OverflowPolicy.SPILL || System.currentTimeMillis() < nextLoadMillis) {
+      return;
+    }
+    // A file left over from a load that failed part way is finished first,
+    // rather than being overwritten by the next spill file
+    var loading = spillFile.resolveSibling(spillFile.getFileName() + ".loading");
+    try {
+      if (!Files.exists(loading)) {
+        if (!Files.exists(spillFile)) {
+          return;
+        }
+        synchronized (spillLock) {
+          Files.move(spillFile, loading);
+        }
+      }
+      var batch = new ArrayList<AuditEvent>();
+      var lineNumber = 0L;
+      try (var lines = Files.newBufferedReader(loading, UTF_8)) {
+        String line;
+        while ((line = lines.readLine()) != null) {
+          if (++lineNumber <= spillLinesLoaded) {
+            continue;
+          }
+          var event = parseSpilledEvent(line);
+          if (event != null) {
+            batch.add(event);
+          }
+          if (batch.size() == MAX_BATCH_SIZE) {
+            if (!loadBatch(batch, lineNumber)) {
+              return;
+            }
+            batch = new ArrayList<>();
+          }
+        }
+      }
+      if (!batch.isEmpty() && !loadBatch(batch, lineNumber)) {
+        return;
+      }
+      Files.delete(loading);
+      spillLinesLoaded = 0;
+    } catch (IOException e) {
+      logger.error("Unable to load spilled audit events from {}", loading, e);
+    }
+  }
+
+  private boolean loadBatch(List<AuditEvent> batch, long throughLine) {
+    if (!tryInsert(batch)) {
+      loadBackoffMillis = Math.min(MAX_LOAD_BACKOFF_MILLIS,
+          Math.max(MIN_LOAD_BACKOFF_MILLIS, loadBackoffMillis * 2));
+      nextLoadMillis = System.currentTimeMillis() + loadBackoffMillis;
+      logger.warn("Retrying spilled audit events from line {} in {}ms",
+          spillLinesLoaded + 1, loadBackoffMillis);
+      return false;
+    }
+    spillLinesLoaded = throughLine;
+    loadBackoffMillis = 0;
+    return true;
+  }
+
+  // Lines that cannot be parsed, such as one torn by a crash part way
+  // through an append, are moved to a rejected file instead of the events
+  // after them being lost
+  private AuditEvent parseSpilledEvent(String line) {
+    try {
+      return AuditEvent.fromJson(new JSONObject(line));
+    } catch (RuntimeException e) {
+      spillRejected.increment();
+      var rejected = spillFile.resolveSibling(spillFile.getFileName() + ".rejected");
+      logger.warn("Skipping unreadable spilled audit event, kept in {}", rejected, e);
+      try (var out = Files.newBufferedWriter(rejected, UTF_8, CREATE, APPEND)) {
+        out.write(line);
+        out.newLine();
+      } catch (IOException ex) {
+        logger.error("Unable to keep rejected audit event in {}", rejected, ex);
+      }
+      return null;
+    }
+  }
+}
@@ -28,6 +28,31 @@ public class CapabilityController {
         return uri.resolve(path + "?access_token=" + tokenId);
     }
 
+    /**
+     * Creates capability URIs for several paths with one call to the token
+     * store, returned in the same order as the paths.
+     */
+    public List<URI> createUris(Request request, List<String> paths,
+            String perms, Duration expiryDuration) {
+        var subject = (String) request.attribute("subject");
+        var expiry = now().plus(expiryDuration);
+        var tokens = new ArrayList<Token>(paths.size());
+        for (var path : paths) {
+            var token = new Token(expiry, subject);
+            token.attributes.put("path", path);
+            token.attributes.put("perms", perms);
+            tokens.add(token);
+        }
+        var tokenIds = tokenStore.createAll(request, tokens);
+
+        var uri = URI.create(request.uri());
+        var uris = new ArrayList<URI>(paths.size());
+        for (int i = 0; i < paths.size(); ++i) {
+            uris.add(uri.resolve(paths.get(i) + "?access_token=" + tokenIds.get(i)));
+        }
+        return uris;
+    }
+
     public void lookupPermissions(Request request, Response response) {
         var tokenId = request.queryParams("access_token");
         if (tokenId == null) {
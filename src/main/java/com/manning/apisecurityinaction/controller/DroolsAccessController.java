@@ -1,55 +1,109 @@
 package com.manning.apisecurityinaction.controller;
 
-import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.kie.api.KieServices;
-import org.kie.api.runtime.KieContainer;
+import org.kie.api.runtime.KieSessionsPool;
 
 public class DroolsAccessController extends ABACAccessController {
 
-    private final KieContainer kieContainer;
+    private final int poolSize;
+    private volatile Pool sessionPool;
 
-    public DroolsAccessController() {
-        this.kieContainer = KieServices.get().getKieClasspathContainer();
+    public DroolsAccessController(MetricsController metrics) {
+        this(metrics, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Compiles the rules up front and keeps a pool of sessions that are
+     * reset and reused, rather than building a new session per request.
+     * The pool grows beyond its initial size if it has to.
+     */
+    public DroolsAccessController(MetricsController metrics, int poolSize) {
+        super(metrics);
+        this.poolSize = poolSize;
+        var kieContainer = KieServices.get().getKieClasspathContainer();
+        kieContainer.getKieBase();
+        this.sessionPool = new Pool(kieContainer.newKieSessionsPool(poolSize));
+    }
+
+    /**
+     * Recompiles the rules from the classpath and drops cached decisions
+     * made with the old ones. Requests already using the old pool finish
+     * with it, and it is shut down once the last of them is done.
+     */
+    public synchronized void reloadRules() {
+        var kieContainer = KieServices.get().newKieClasspathContainer();
+        kieContainer.getKieBase();
+        var oldPool = sessionPool;
+        sessionPool = new Pool(kieContainer.newKieSessionsPool(poolSize));
+        invalidateDecisions();
+        oldPool.release();
     }
 
     @Override
-    boolean checkPermitted(Map<String, Object> subject,
-                           Map<String, Object> resource,
-                           Map<String, Object> action,
-                           Map<String, Object> env) {
+    boolean checkPermitted(Subject subject, Resource resource,
+                           Action action, Environment env) {
 
-        var session = kieContainer.newKieSession();
+        var pool = acquirePool();
+        var session = pool.sessions.newKieSession();
         try {
             var decision = new Decision();
             session.setGlobal("decision", decision);
 
-            session.insert(new Subject(subject));
-            session.insert(new Resource(resource));
-            session.insert(new Action(action));
-            session.insert(new Environment(env));
+            session.insert(subject);
+            session.insert(resource);
+            session.insert(action);
+            session.insert(env);
 
             session.fireAllRules();
             return decision.isPermitted();
 
         } finally {
+            // Returns the session to the pool
             session.dispose();
+            pool.release();
         }
     }
 
-    public static class Subject extends HashMap<String, Object> {
-        Subject(Map<String, Object> m) { super(m); }
+    private Pool acquirePool() {
+        while (true) {
+            var pool = sessionPool;
+            if (pool.acquire()) {
+                return pool;
+            }
+            // Replaced and drained since it was read, so read the new one
+        }
     }
 
-    public static class Resource extends HashMap<String, Object> {
-        Resource(Map<String, Object> m) { super(m); }
-    }
+    /**
+     * A session pool with a count of its users. The controller holds one
+     * reference while the pool is current, and the pool is shut down when
+     * the count reaches zero, after which it can no longer be acquired.
+     */
+    private static class Pool {
+        final KieSessionsPool sessions;
+        final AtomicInteger references = new AtomicInteger(1);
 
-    public static class Action extends HashMap<String, Object> {
-        Action(Map<String, Object> m) { super(m); }
-    }
+        Pool(KieSessionsPool sessions) {
+            this.sessions = sessions;
+        }
 
-    public static class Environment extends HashMap<String, Object> {
-        Environment(Map<String, Object> m) { super(m); }
+        boolean acquire() {
+            int count;
+            do {
+                count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                sessions.shutdown();
+            }
+        }
     }
 }
@@ -0,0 +1,94 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dalesbred.Database;
+import org.slf4j.*;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Hands out ids from blocks reserved from a database sequence. Each
+ * sequence value reserves the next blockSize ids, so ids stay unique
+ * across restarts and across replicas sharing the database. Once half of
+ * a block has been handed out the next one is reserved in the background,
+ * so callers normally never wait for the database.
+ */
+class IdAllocator {
+  private static final Logger logger = LoggerFactory.getLogger(IdAllocator.class);
+
+  private static final Executor refillExecutor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder()
+          .setNameFormat("id-allocator-%d")
+          .setDaemon(true)
+          .build());
+
+  private final Database database;
+  private final String sequence;
+  private final long blockSize;
+  private volatile Block current = new Block(0, 0, 0);
+  private CompletableFuture<Block> next;
+
+  IdAllocator(Database database, String sequence, long blockSize) {
+    this.database = database;
+    this.sequence = sequence;
+    this.blockSize = blockSize;
+    refill();
+  }
+
+  long nextId() {
+    while (true) {
+      var block = current;
+      var id = block.next.getAndIncrement();
+      if (id < block.end) {
+        if (id == block.refillAt) {
+          refill();
+        }
+        return id;
+      }
+      synchronized (this) {
+        if (current == block) {
+          current = takeNextBlock();
+        }
+      }
+    }
+  }
+
+  private synchronized void refill() {
+    if (next == null) {
+      next = CompletableFuture.supplyAsync(this::reserveBlock, refillExecutor);
+    }
+  }
+
+  // Called holding the lock when the current block has run out
+  private Block takeNextBlock() {
+    var pending = next;
+    next = null;
+    if (pending != null) {
+      try {
+        return pending.join();
+      } catch (CompletionException e) {
+        logger.warn("Background reservation from {} failed, retrying", sequence, e);
+      }
+    }
+    return reserveBlock();
+  }
+
+  private Block reserveBlock() {
+    var hi = database.findUniqueLong("SELECT NEXT VALUE FOR " + sequence);
+    return new Block(hi * blockSize, (hi + 1) * blockSize, hi * blockSize + blockSize / 2);
+  }
+
+  private static class Block {
+    final AtomicLong next;
+    final long end;
+    final long refillAt;
+
+    Block(long start, long end, long refillAt) {
+      this.next = new AtomicLong(start);
+      this.end = end;
+      this.refillAt = refillAt;
+    }
+  }
+}
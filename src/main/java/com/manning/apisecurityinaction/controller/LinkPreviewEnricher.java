@@ -0,0 +1,208 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.net.*;
+import java.net.http.*;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.dalesbred.Database;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.*;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.manning.apisecurityinaction.LinkPreviewCache;
+
+/**
+ * Fetches link previews for newly posted messages in the background and
+ * stores them in the link_previews table, so that reading a message never
+ * has to call out to the link preview service.
+ */
+class LinkPreviewEnricher {
+  private static final Logger logger = LoggerFactory.getLogger(LinkPreviewEnricher.class);
+
+  private static final Pattern LINK_PATTERN = Pattern.compile("https?://\\S+");
+  private static final int MAX_LINKS_PER_MESSAGE = 5;
+  private static final int MAX_PREVIEW_LENGTH = 4096;
+  private static final Duration PREVIEW_DEADLINE = Duration.ofSeconds(10);
+
+  private final Database database;
+  private final ThreadPoolExecutor executor;
+  private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+  private final HttpClient httpClient = HttpClient.newBuilder()
+      .connectTimeout(PREVIEW_DEADLINE)
+      .build();
+  private final URI linkPreviewService = URI.create("http://natter-link-preview-service:4567");
+  private final LinkPreviewCache<JSONObject> previewCache =
+      new LinkPreviewCache<>(10_000, Duration.ofMinutes(30), Duration.ofMinutes(1));
+
+  private final MetricsController.Timer previewTimer;
+  private final MetricsController.Timer lagTimer;
+  private final LongAdder previewErrors;
+  private final LongAdder previewTimeouts;
+  private final LongAdder dropped;
+
+  LinkPreviewEnricher(Database database, MetricsController metrics,
+      int workers, int queueCapacity) {
+    this.database = database;
+    this.executor = new ThreadPoolExecutor(workers, workers,
+        0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity),
+        new ThreadFactoryBuilder()
+            .setNameFormat("link-preview-%d")
+            .setDaemon(true)
+            .build());
+
+    this.previewTimer = metrics.timer("link_preview.latency");
+    this.lagTimer = metrics.timer("link_preview.enrichment.lag");
+    this.previewErrors = metrics.counter("link_preview.errors");
+    this.previewTimeouts = metrics.counter("link_preview.deadline_exceeded");
+    this.dropped = metrics.counter("link_preview.enrichment.dropped");
+    metrics.gauge("link_preview.enrichment.queue_depth", () -> executor.getQueue().size());
+    metrics.gauge("link_preview.enrichment.active", executor::getActiveCount);
+    metrics.gauge("link_preview.cache.hits", previewCache::hits);
+    metrics.gauge("link_preview.cache.misses", previewCache::misses);
+    metrics.gauge("link_preview.cache.size", previewCache::size);
+  }
+
+  /**
+   * Queues preview fetching for any links in a committed message. If the
+   * queue is full the message is left without previews rather than
+   * slowing down the caller.
+   */
+  void enqueue(long msgId, Instant postedAt, String text) {
+    var links = extractLinks(text);
+    if (links.isEmpty()) {
+      return;
+    }
+    inFlight.add(msgId);
+    try {
+      executor.execute(() -> {
+        try {
+          enrich(msgId, postedAt, links);
+        } finally {
+          inFlight.remove(msgId);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      inFlight.remove(msgId);
+      dropped.increment();
+      logger.warn("Link preview queue full, skipping message {}", msgId);
+    }
+  }
+
+  /**
+   * Whether the message's previews are final. Messages posted through
+   * other replicas are assumed to be done a minute after posting.
+   */
+  boolean isSettled(long msgId, Instant postedAt, String text) {
+    return extractLinks(text).isEmpty()
+        || (!inFlight.contains(msgId)
+            && postedAt.isBefore(Instant.now().minus(PREVIEW_DEADLINE.multipliedBy(6))));
+  }
+
+  private static List<String> extractLinks(String text) {
+    var links = new LinkedHashSet<String>();
+    var matcher = LINK_PATTERN.matcher(text);
+    while (links.size() < MAX_LINKS_PER_MESSAGE && matcher.find()) {
+      links.add(matcher.group());
+    }
+    return new ArrayList<>(links);
+  }
+
+  private void enrich(long msgId, Instant postedAt, List<String> links) {
+    // Links already cached or being fetched are shared; the rest are
+    // collected here and fetched together in a single batch request.
+    var pending = new LinkedHashMap<String, CompletableFuture<JSONObject>>();
+    var futures = links.stream()
+        .map(link -> previewCache.get(link,
+            url -> pending.computeIfAbsent(url, u -> new CompletableFuture<>())))
+        .collect(Collectors.toList());
+    if (!pending.isEmpty()) {
+      requestLinkPreviews(pending.keySet()).whenComplete((results, error) ->
+          pending.forEach((url, future) -> {
+            var preview = results == null ? null : results.optJSONObject(url);
+            if (preview != null && preview.has("status")) {
+              logger.debug("Link preview for {} returned {}", url, preview.get("status"));
+              previewErrors.increment();
+              preview = null;
+            }
+            future.complete(preview);
+          }));
+    }
+
+    try {
+      CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+          .get(PREVIEW_DEADLINE.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      previewTimeouts.increment();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // Failures are already mapped to null previews
+    }
+
+    // Previews still outstanding are left to finish and fill the cache for
+    // later messages; the batch request has its own timeout
+    for (int i = 0; i < futures.size(); ++i) {
+      var preview = futures.get(i).getNow(null);
+      if (preview == null) {
+        continue;
+      }
+      var json = preview.toString();
+      if (json.length() > MAX_PREVIEW_LENGTH) {
+        continue;
+      }
+      // Previews are kept for archived messages too, so they are not tied
+      // to the messages table by a foreign key; skip any message deleted
+      // before we got to it
+      try {
+        database.update(
+            "INSERT INTO link_previews(msg_id, link_index, url, preview) " +
+                "SELECT ?, ?, ?, ? FROM DUAL WHERE EXISTS " +
+                "(SELECT 1 FROM messages WHERE msg_id = ?) OR EXISTS " +
+                "(SELECT 1 FROM archived_messages WHERE msg_id = ?)",
+            msgId, i, links.get(i), json, msgId, msgId);
+      } catch (RuntimeException e) {
+        logger.warn("Unable to store link preview {} for message {}", i, msgId, e);
+      }
+    }
+    lagTimer.record(Duration.between(postedAt, Instant.now()));
+  }
+
+  private CompletableFuture<JSONObject> requestLinkPreviews(Collection<String> links) {
+    var request = HttpRequest.newBuilder(linkPreviewService.resolve("/previews"))
+        .timeout(PREVIEW_DEADLINE)
+        .header("Content-Type", "application/json")
+        .POST(BodyPublishers.ofString(new JSONArray(links).toString()))
+        .build();
+    var start = System.nanoTime();
+    return httpClient.sendAsync(request, BodyHandlers.ofString())
+        .handle((response, error) -> {
+          previewTimer.recordNanos(System.nanoTime() - start);
+          if (error != null) {
+            previewErrors.increment();
+            logger.debug("Link preview batch {} failed", links, error);
+            return null;
+          }
+          if (response.statusCode() != 200) {
+            previewErrors.increment();
+            logger.debug("Link preview batch {} returned {}", links, response.statusCode());
+            return null;
+          }
+          try {
+            return new JSONObject(response.body());
+          } catch (JSONException e) {
+            previewErrors.increment();
+            return null;
+          }
+        });
+  }
+}
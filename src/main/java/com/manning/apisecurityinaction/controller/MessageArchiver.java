@@ -0,0 +1,101 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.dalesbred.Database;
+import org.slf4j.*;
+
+/**
+ * Moves messages older than their space's retention period from messages
+ * to archived_messages, a chunk at a time, so that the hot table and its
+ * indexes only hold recent messages. Spaces without a retention setting
+ * use the default, and a retention of zero days keeps messages forever.
+ */
+class MessageArchiver {
+  private static final Logger logger = LoggerFactory.getLogger(MessageArchiver.class);
+
+  private final Database database;
+  private final int defaultRetentionDays;
+  private final int chunkSize;
+  private final BiConsumer<Long, Long> onArchived;
+  private final LongAdder archived;
+  private final MetricsController.Timer chunkTimer;
+
+  MessageArchiver(Database database, MetricsController metrics,
+      int defaultRetentionDays, int chunkSize, Duration interval,
+      BiConsumer<Long, Long> onArchived) {
+    this.database = database;
+    this.defaultRetentionDays = defaultRetentionDays;
+    this.chunkSize = chunkSize;
+    this.onArchived = onArchived;
+    this.archived = metrics.counter("messages.archived");
+    this.chunkTimer = metrics.timer("messages.archive.chunk.latency");
+
+    Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "message-archiver");
+      thread.setDaemon(true);
+      return thread;
+    }).scheduleWithFixedDelay(this::run, interval.toMillis(), interval.toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void run() {
+    try {
+      var total = 0;
+      int moved;
+      do {
+        moved = archiveChunk(Instant.now());
+        total += moved;
+      } while (moved == chunkSize);
+      if (total > 0) {
+        logger.info("Archived {} messages", total);
+      }
+    } catch (RuntimeException e) {
+      logger.warn("Message archiving failed", e);
+    }
+  }
+
+  /**
+   * Archives up to chunkSize of the oldest expired messages in one short
+   * transaction and returns how many were moved.
+   */
+  int archiveChunk(Instant now) {
+    var start = System.nanoTime();
+    var expired = database.withTransaction(tx -> {
+      var rows = database.findAll(row -> new long[] { row.getLong(1), row.getLong(2) },
+          "SELECT m.space_id, m.msg_id FROM messages m " +
+              "LEFT JOIN space_retention r ON r.space_id = m.space_id " +
+              "WHERE COALESCE(r.retention_days, ?) > 0 " +
+              "AND m.msg_time < DATEADD('DAY', -COALESCE(r.retention_days, ?), ?) " +
+              "ORDER BY m.msg_time LIMIT ?",
+          defaultRetentionDays, defaultRetentionDays, now, chunkSize);
+      if (rows.isEmpty()) {
+        return rows;
+      }
+
+      var ids = new ArrayList<List<?>>(rows.size());
+      for (var row : rows) {
+        ids.add(List.of(row[1]));
+      }
+      database.updateBatch(
+          "INSERT INTO archived_messages(space_id, msg_id, author, msg_time, msg_text) " +
+              "SELECT space_id, msg_id, author, msg_time, msg_text " +
+              "FROM messages WHERE msg_id = ?",
+          ids);
+      database.updateBatch("DELETE FROM messages WHERE msg_id = ?", ids);
+      return rows;
+    });
+    chunkTimer.recordNanos(System.nanoTime() - start);
+
+    archived.add(expired.size());
+    for (var row : expired) {
+      onArchived.accept(row[0], row[1]);
+    }
+    return expired.size();
+  }
+}
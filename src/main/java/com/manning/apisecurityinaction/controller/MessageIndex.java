@@ -0,0 +1,320 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongPredicate;
+
+import org.dalesbred.Database;
+import org.slf4j.*;
+
+/**
+ * Per-space inverted index from lower-cased words of message text to
+ * sorted arrays of message ids, built from the messages table at startup
+ * and kept up to date by this replica's posts and deletes. Messages posted
+ * through other replicas are not seen until the next restart.
+ * <p>
+ * Only messages from the last {@code window} are indexed, and older ones
+ * are pruned every hour, so memory follows recent traffic rather than the
+ * size of the table. Searches reaching further back find the older
+ * messages with a LIKE query instead.
+ */
+class MessageIndex {
+  private static final Logger logger = LoggerFactory.getLogger(MessageIndex.class);
+
+  private static final int MAX_TERM_LENGTH = 64;
+
+  private final Database database;
+  private final Duration window;
+  private final Map<Long, SpaceIndex> spaces = new ConcurrentHashMap<>();
+  // Start of the window for spaces created from now on
+  private volatile long windowStart;
+
+  MessageIndex(Database database, MetricsController metrics, Duration window) {
+    this.database = database;
+    this.window = window;
+    this.windowStart = Instant.now().minus(window).toEpochMilli();
+
+    var start = System.nanoTime();
+    var count = database.executeQuery(rs -> {
+      var rows = 0;
+      while (rs.next()) {
+        add(rs.getLong(1), rs.getLong(2), rs.getTimestamp(3).toInstant(), rs.getString(4));
+        ++rows;
+      }
+      return rows;
+    }, "SELECT space_id, msg_id, msg_time, msg_text FROM messages WHERE msg_time >= ?",
+        Instant.ofEpochMilli(windowStart));
+    logger.info("Indexed {} messages in {}ms, about {} bytes", count,
+        (System.nanoTime() - start) / 1_000_000, estimatedBytes());
+
+    metrics.gauge("messages.index.bytes", this::estimatedBytes);
+    metrics.gauge("messages.index.terms",
+        () -> spaces.values().stream().mapToLong(SpaceIndex::termCount).sum());
+
+    Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "message-index-pruner");
+      thread.setDaemon(true);
+      return thread;
+    }).scheduleWithFixedDelay(() -> prune(Instant.now().minus(window)), 1, 1, TimeUnit.HOURS);
+  }
+
+  void add(long spaceId, long msgId, Instant time, String text) {
+    var terms = terms(text);
+    // Added inside compute so that prune can't drop the space meanwhile
+    spaces.compute(spaceId, (id, index) -> {
+      if (index == null) {
+        index = new SpaceIndex(windowStart);
+      }
+      index.add(msgId, time.toEpochMilli(), terms);
+      return index;
+    });
+  }
+
+  void remove(long spaceId, long msgId) {
+    var index = spaces.get(spaceId);
+    if (index != null) {
+      index.remove(msgId);
+    }
+  }
+
+  /**
+   * Ids of messages in the space at or after the given time containing
+   * every word of the query, in id order.
+   */
+  List<Long> search(long spaceId, String query, Instant since) {
+    var terms = terms(query);
+    if (terms.isEmpty()) {
+      return List.of();
+    }
+    var index = spaces.get(spaceId);
+    List<Long> indexed = List.of();
+    long indexedFrom = windowStart;
+    if (index != null) {
+      // Read together, so a prune in between can't leave a gap
+      synchronized (index) {
+        indexedFrom = index.windowStart;
+        indexed = index.search(terms, since.toEpochMilli());
+      }
+    }
+    if (since.toEpochMilli() >= indexedFrom) {
+      return indexed;
+    }
+
+    // Messages added after their time had left the window are in both
+    var result = new TreeSet<>(searchDatabase(spaceId, terms, since,
+        Instant.ofEpochMilli(indexedFrom)));
+    result.addAll(indexed);
+    return List.copyOf(result);
+  }
+
+  // LIKE finds messages containing each word anywhere, so the words of
+  // each candidate are checked the same way as indexed text
+  private List<Long> searchDatabase(long spaceId, Set<String> terms, Instant since,
+      Instant until) {
+    var sql = new StringBuilder("SELECT msg_id, msg_text FROM messages " +
+        "WHERE space_id = ? AND msg_time >= ? AND msg_time < ?");
+    var args = new ArrayList<Object>(List.of(spaceId, since, until));
+    for (var term : terms) {
+      // Terms are letters and digits only, so need no escaping
+      sql.append(" AND LOWER(msg_text) LIKE ?");
+      args.add("%" + term + "%");
+    }
+    sql.append(" ORDER BY msg_id");
+    return database.executeQuery(rs -> {
+      var ids = new ArrayList<Long>();
+      while (rs.next()) {
+        if (terms(rs.getString(2)).containsAll(terms)) {
+          ids.add(rs.getLong(1));
+        }
+      }
+      return ids;
+    }, sql.toString(), args.toArray());
+  }
+
+  /** Drops messages older than the cutoff, and spaces left empty. */
+  void prune(Instant cutoff) {
+    var start = cutoff.toEpochMilli();
+    windowStart = start;
+    for (var spaceId : spaces.keySet()) {
+      spaces.computeIfPresent(spaceId, (id, index) -> {
+        index.prune(start);
+        return index.isEmpty() ? null : index;
+      });
+    }
+  }
+
+  long estimatedBytes() {
+    return spaces.values().stream().mapToLong(SpaceIndex::estimatedBytes).sum();
+  }
+
+  static Set<String> terms(String text) {
+    var terms = new LinkedHashSet<String>();
+    var start = -1;
+    for (int i = 0; i <= text.length(); ++i) {
+      var word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (word && start < 0) {
+        start = i;
+      } else if (!word && start >= 0) {
+        if (i - start <= MAX_TERM_LENGTH) {
+          terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+        }
+        start = -1;
+      }
+    }
+    return terms;
+  }
+
+  private static class SpaceIndex {
+    private final Map<String, Postings> postings = new HashMap<>();
+    // Every indexed message, sorted by id, with its time for since filters
+    private Postings docs = new Postings();
+    private long[] times = new long[4];
+    // Messages at or after this time are all in the index
+    long windowStart;
+
+    SpaceIndex(long windowStart) {
+      this.windowStart = windowStart;
+    }
+
+    synchronized void add(long msgId, long time, Set<String> terms) {
+      var pos = docs.insert(msgId);
+      if (pos < 0) {
+        return;
+      }
+      if (docs.size > times.length) {
+        times = Arrays.copyOf(times, docs.ids.length);
+      }
+      System.arraycopy(times, pos, times, pos + 1, docs.size - pos - 1);
+      times[pos] = time;
+      for (var term : terms) {
+        postings.computeIfAbsent(term, t -> new Postings()).insert(msgId);
+      }
+    }
+
+    // Deletes are rare, so walking every term is fine
+    synchronized void remove(long msgId) {
+      var pos = docs.remove(msgId);
+      if (pos < 0) {
+        return;
+      }
+      System.arraycopy(times, pos + 1, times, pos, docs.size - pos);
+      postings.values().removeIf(list -> list.remove(msgId) >= 0 && list.size == 0);
+    }
+
+    synchronized List<Long> search(Set<String> terms, long since) {
+      var lists = new ArrayList<Postings>(terms.size());
+      for (var term : terms) {
+        var list = postings.get(term);
+        if (list == null) {
+          return List.of();
+        }
+        lists.add(list);
+      }
+      lists.sort(Comparator.comparingInt(list -> list.size));
+
+      var result = new ArrayList<Long>();
+      var smallest = lists.get(0);
+      candidates:
+      for (int i = 0; i < smallest.size; ++i) {
+        var msgId = smallest.ids[i];
+        for (int j = 1; j < lists.size(); ++j) {
+          if (lists.get(j).indexOf(msgId) < 0) {
+            continue candidates;
+          }
+        }
+        if (times[docs.indexOf(msgId)] >= since) {
+          result.add(msgId);
+        }
+      }
+      return result;
+    }
+
+    synchronized void prune(long cutoff) {
+      windowStart = Math.max(windowStart, cutoff);
+      var keep = new Postings();
+      var keptTimes = new long[Math.max(4, docs.size)];
+      for (int i = 0; i < docs.size; ++i) {
+        if (times[i] >= cutoff) {
+          keptTimes[keep.insert(docs.ids[i])] = times[i];
+        }
+      }
+      if (keep.size == docs.size) {
+        return;
+      }
+      docs = keep;
+      times = keptTimes;
+      postings.values().removeIf(list -> list.retain(id -> docs.indexOf(id) >= 0) == 0);
+    }
+
+    synchronized boolean isEmpty() {
+      return docs.size == 0;
+    }
+
+    synchronized long termCount() {
+      return postings.size();
+    }
+
+    synchronized long estimatedBytes() {
+      // Rough object and array header sizes on a 64-bit JVM
+      long bytes = 16L + 8L * docs.ids.length + 8L * times.length;
+      for (var entry : postings.entrySet()) {
+        bytes += 32 + 40 + 2L * entry.getKey().length()
+            + 32 + 16 + 8L * entry.getValue().ids.length;
+      }
+      return bytes;
+    }
+  }
+
+  /** A sorted, growable array of message ids. */
+  private static class Postings {
+    long[] ids = new long[2];
+    int size;
+
+    int indexOf(long msgId) {
+      return Arrays.binarySearch(ids, 0, size, msgId);
+    }
+
+    // Returns the insertion position, or -1 if already present. Ids are
+    // allocated in increasing order, so this is almost always an append.
+    int insert(long msgId) {
+      int pos = size;
+      if (size > 0 && ids[size - 1] >= msgId) {
+        pos = indexOf(msgId);
+        if (pos >= 0) {
+          return -1;
+        }
+        pos = -pos - 1;
+      }
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+      ids[pos] = msgId;
+      ++size;
+      return pos;
+    }
+
+    // Keeps the ids matching the filter, returning how many are left
+    int retain(LongPredicate filter) {
+      int kept = 0;
+      for (int i = 0; i < size; ++i) {
+        if (filter.test(ids[i])) {
+          ids[kept++] = ids[i];
+        }
+      }
+      size = kept;
+      return size;
+    }
+
+    // Returns the position removed from, or -1 if absent
+    int remove(long msgId) {
+      var pos = indexOf(msgId);
+      if (pos >= 0) {
+        System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+        --size;
+      }
+      return pos;
+    }
+  }
+}
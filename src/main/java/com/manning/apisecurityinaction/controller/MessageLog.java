@@ -0,0 +1,591 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.dalesbred.Database;
+import org.slf4j.*;
+
+import com.google.common.io.CountingInputStream;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A local write-ahead log for posted messages. Concurrent posts are
+ * grouped so that each group shares a single fsync, and append returns
+ * once the message is durable. A background applier drains the log into
+ * the messages table with batched inserts, and until then the message is
+ * visible through {@link #find} and {@link #findSince}. Segments are
+ * deleted once every message in them has been applied. The position of the
+ * last applied message is synced to an applied file before anyone is told
+ * it was applied, and on startup only messages after it are replayed, so a
+ * message deleted or archived since is not brought back. A message the
+ * database rejects while it is otherwise available is moved to a
+ * dead-letter file rather than holding up every message behind it.
+ * <p>
+ * Each record is an int length and CRC32 of the body, followed by the
+ * space id, message id, epoch millis, author and text. The applied file
+ * holds a segment number and the offset just past the last applied record
+ * in it, followed by a CRC32 of the two.
+ */
+class MessageLog {
+  private static final Logger logger = LoggerFactory.getLogger(MessageLog.class);
+
+  private static final String SEGMENT_SUFFIX = ".wal";
+  private static final int APPLY_BATCH_SIZE = 500;
+  private static final String DEAD_LETTER_FILE = "dead-letters.log";
+  private static final String APPLIED_FILE = "applied";
+
+  private final Database database;
+  private final Path directory;
+  private final long segmentBytes;
+  private final Consumer<Entry> onApplied;
+  private final Consumer<Entry> onDeadLettered;
+  private final Map<Long, Entry> unapplied = new ConcurrentHashMap<>();
+  private final BlockingQueue<Entry> applyQueue = new LinkedBlockingQueue<>();
+
+  private final Object lock = new Object();
+  private List<Entry> pending = new ArrayList<>();
+  private CompletableFuture<Void> pendingCommit = new CompletableFuture<>();
+  private Throwable writerStopped;
+
+  // Only touched by the writer thread
+  private long segmentNumber;
+  private FileChannel segment;
+  private boolean segmentFailed;
+  private volatile long activeSegment;
+
+  // Only touched by the applier thread once started
+  private final FileChannel appliedFile;
+
+  private final MetricsController.Timer commitTimer;
+  private final MetricsController.Timer applyTimer;
+  private final LongAdder deadLettered;
+
+  MessageLog(Database database, Path directory, long segmentBytes,
+      MetricsController metrics, Consumer<Entry> onApplied,
+      Consumer<Entry> onDeadLettered) throws IOException {
+    this.database = database;
+    this.directory = Files.createDirectories(directory);
+    this.segmentBytes = segmentBytes;
+    this.onApplied = onApplied;
+    this.onDeadLettered = onDeadLettered;
+    this.commitTimer = metrics.timer("messages.log.commit.latency");
+    this.applyTimer = metrics.timer("messages.log.apply.latency");
+    this.deadLettered = metrics.counter("messages.log.dead_lettered");
+    metrics.gauge("messages.log.unapplied", unapplied::size);
+
+    this.appliedFile = FileChannel.open(directory.resolve(APPLIED_FILE), CREATE, READ, WRITE);
+    replay();
+  }
+
+  /**
+   * Starts writing and applying messages. Until then the replayed messages
+   * are only in {@link #unapplied()}, so that callers can build state from
+   * them and the table without the applier moving messages in between.
+   */
+  void start() {
+    var writer = new Thread(this::write, "message-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+    var applier = new Thread(this::apply, "message-log-applier");
+    applier.setDaemon(true);
+    applier.start();
+  }
+
+  /**
+   * Appends a message to the log, returning once it has been synced to
+   * disk.
+   */
+  void append(long spaceId, long msgId, Instant time, String author,
+      String text) {
+    var entry = new Entry(spaceId, msgId, time, author, text);
+    CompletableFuture<Void> commit;
+    synchronized (lock) {
+      if (writerStopped != null) {
+        throw new UncheckedIOException("message log writer has stopped",
+            new IOException(writerStopped));
+      }
+      pending.add(entry);
+      commit = pendingCommit;
+      lock.notifyAll();
+    }
+    try {
+      commit.join();
+    } catch (CompletionException e) {
+      throw new UncheckedIOException("unable to write message log",
+          e.getCause() instanceof IOException
+              ? (IOException) e.getCause() : new IOException(e.getCause()));
+    }
+  }
+
+  Optional<Entry> find(long spaceId, long msgId) {
+    var entry = unapplied.get(msgId);
+    return entry != null && entry.spaceId == spaceId
+        ? Optional.of(entry) : Optional.empty();
+  }
+
+  /** Ids of messages in the space at or after the given time not yet applied. */
+  List<Long> findSince(long spaceId, Instant since) {
+    var result = new ArrayList<Long>();
+    for (var entry : unapplied.values()) {
+      if (entry.spaceId == spaceId && !entry.time.isBefore(since)) {
+        result.add(entry.msgId);
+      }
+    }
+    return result;
+  }
+
+  /** A snapshot of the messages not yet applied. */
+  List<Entry> unapplied() {
+    return new ArrayList<>(unapplied.values());
+  }
+
+  /**
+   * Waits until the message, if it is in the log, has been applied or
+   * dead-lettered. Returns false if that did not happen within the timeout.
+   */
+  boolean awaitApplied(long msgId, Duration timeout) {
+    var entry = unapplied.get(msgId);
+    if (entry == null) {
+      return true;
+    }
+    try {
+      entry.applied.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private void write() {
+    CompletableFuture<Void> commit = null;
+    try {
+      while (true) {
+        List<Entry> batch;
+        synchronized (lock) {
+          while (pending.isEmpty()) {
+            lock.wait();
+          }
+          batch = pending;
+          commit = pendingCommit;
+          pending = new ArrayList<>();
+          pendingCommit = new CompletableFuture<>();
+        }
+
+        var start = System.nanoTime();
+        try {
+          writeBatch(batch);
+          // Visible to readers before the posting client gets its response
+          for (var entry : batch) {
+            unapplied.put(entry.msgId, entry);
+          }
+          applyQueue.addAll(batch);
+          commit.complete(null);
+        } catch (IOException | RuntimeException e) {
+          logger.error("Failed to append {} messages to the log", batch.size(), e);
+          commit.completeExceptionally(e);
+        }
+        commit = null;
+        commitTimer.recordNanos(System.nanoTime() - start);
+      }
+    } catch (InterruptedException e) {
+      stopWriter(commit, new IOException("message log writer interrupted"));
+    } catch (RuntimeException | Error e) {
+      logger.error("Message log writer failed", e);
+      stopWriter(commit, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Fails the batch being written, if any, and everything waiting for the
+   * next one, so that posts do not block forever on a writer that is gone,
+   * and refuses later appends.
+   */
+  private void stopWriter(CompletableFuture<Void> inFlight, Throwable cause) {
+    synchronized (lock) {
+      writerStopped = cause;
+      pendingCommit.completeExceptionally(cause);
+      pending = new ArrayList<>();
+    }
+    if (inFlight != null) {
+      inFlight.completeExceptionally(cause);
+    }
+  }
+
+  private void writeBatch(List<Entry> batch) throws IOException {
+    if (segment == null || segmentFailed || segment.position() >= segmentBytes) {
+      rollSegment();
+    }
+    var position = segment.position();
+    var bytes = new ByteArrayOutputStream();
+    for (var entry : batch) {
+      encode(entry, bytes);
+      entry.segment = segmentNumber;
+      entry.offset = position + bytes.size();
+    }
+    var buffer = ByteBuffer.wrap(bytes.toByteArray());
+    try {
+      while (buffer.hasRemaining()) {
+        segment.write(buffer);
+      }
+      segment.force(false);
+    } catch (IOException | RuntimeException e) {
+      discardFailedWrite(position);
+      throw e;
+    }
+  }
+
+  /**
+   * Cuts off whatever part of a failed batch reached the segment, so that
+   * its messages are not replayed after their clients were told they
+   * failed, and moves later batches to a new segment. Otherwise a torn
+   * record would stop replay before every acknowledged message after it.
+   */
+  private void discardFailedWrite(long position) {
+    segmentFailed = true;
+    try {
+      segment.truncate(position);
+      segment.force(false);
+    } catch (IOException | RuntimeException e) {
+      logger.error("Unable to truncate message log segment {}", segmentNumber, e);
+    }
+  }
+
+  private void rollSegment() throws IOException {
+    if (segment != null) {
+      segment.close();
+      ++segmentNumber;
+    }
+    segment = openSegment(segmentPath(segmentNumber));
+    segmentFailed = false;
+    activeSegment = segmentNumber;
+  }
+
+  // Overridden by tests to inject write failures
+  FileChannel openSegment(Path path) throws IOException {
+    return FileChannel.open(path, CREATE_NEW, WRITE);
+  }
+
+  private void apply() {
+    var batch = new ArrayList<Entry>();
+    while (true) {
+      try {
+        batch.add(applyQueue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      applyQueue.drainTo(batch, APPLY_BATCH_SIZE - 1);
+
+      var start = System.nanoTime();
+      Set<Entry> deadLetters = Set.of();
+      try {
+        insert(batch);
+      } catch (RuntimeException e) {
+        logger.warn("Unable to apply {} logged messages, retrying one at a time",
+            batch.size(), e);
+        try {
+          deadLetters = applyEach(batch);
+        } catch (InterruptedException ie) {
+          return;
+        }
+      }
+      try {
+        saveApplied(batch.get(batch.size() - 1));
+      } catch (InterruptedException e) {
+        return;
+      }
+      applyTimer.recordNanos(System.nanoTime() - start);
+      for (var entry : batch) {
+        if (deadLetters.contains(entry)) {
+          deadLettered(entry);
+        } else {
+          applied(entry);
+        }
+      }
+
+      var oldest = applyQueue.isEmpty() ? activeSegment : applyQueue.peek().segment;
+      deleteSegmentsBefore(oldest);
+      batch.clear();
+    }
+  }
+
+  /**
+   * Inserts messages one at a time after a batch failed, returning those
+   * that were dead-lettered. A message that fails while the database
+   * answers queries is dead-lettered; if the database is unavailable, waits
+   * and tries the same message again.
+   */
+  private Set<Entry> applyEach(List<Entry> batch) throws InterruptedException {
+    var deadLetters = new HashSet<Entry>();
+    for (var entry : batch) {
+      while (true) {
+        try {
+          insert(List.of(entry));
+          break;
+        } catch (RuntimeException e) {
+          if (isDatabaseAvailable()) {
+            writeDeadLetter(entry, e);
+            deadLetters.add(entry);
+            break;
+          }
+          logger.warn("Database unavailable applying message {}, retrying", entry.msgId, e);
+          Thread.sleep(1000);
+        }
+      }
+    }
+    return deadLetters;
+  }
+
+  /**
+   * Records that every message up to and including this one has been
+   * applied, retrying until it is on disk: until then a delete of one of
+   * them could be undone by a replay.
+   */
+  private void saveApplied(Entry last) throws InterruptedException {
+    var buffer = ByteBuffer.allocate(20).putLong(last.segment).putLong(last.offset);
+    var crc = new CRC32();
+    crc.update(buffer.array(), 0, 16);
+    buffer.putInt((int) crc.getValue()).flip();
+    while (true) {
+      try {
+        appliedFile.write(buffer.duplicate(), 0);
+        appliedFile.force(false);
+        return;
+      } catch (IOException e) {
+        logger.error("Unable to record applied messages, retrying", e);
+        Thread.sleep(1000);
+      }
+    }
+  }
+
+  /**
+   * Returns the segment number and offset saved by {@link #saveApplied}, or
+   * null if nothing was saved or it is unreadable, in which case everything
+   * is replayed.
+   */
+  private long[] loadApplied() throws IOException {
+    var buffer = ByteBuffer.allocate(20);
+    while (buffer.hasRemaining()) {
+      if (appliedFile.read(buffer, buffer.position()) < 0) {
+        return null;
+      }
+    }
+    var crc = new CRC32();
+    crc.update(buffer.array(), 0, 16);
+    buffer.flip();
+    var position = new long[] { buffer.getLong(), buffer.getLong() };
+    if (buffer.getInt() != (int) crc.getValue()) {
+      logger.warn("Ignoring corrupt {}, replaying every logged message", APPLIED_FILE);
+      return null;
+    }
+    return position;
+  }
+
+  private boolean isDatabaseAvailable() {
+    try {
+      database.findUniqueInt("SELECT 1");
+      return true;
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
+  private void applied(Entry entry) {
+    unapplied.remove(entry.msgId);
+    entry.applied.complete(null);
+    try {
+      onApplied.accept(entry);
+    } catch (RuntimeException e) {
+      logger.warn("Post-apply hook failed for message {}", entry.msgId, e);
+    }
+  }
+
+  // Kept in the same record format as the segments, so that they can be
+  // decoded and re-applied by hand once the cause is fixed
+  private void writeDeadLetter(Entry entry, RuntimeException cause) {
+    deadLettered.increment();
+    var file = directory.resolve(DEAD_LETTER_FILE);
+    logger.error("Moving message {} in space {} to {}", entry.msgId, entry.spaceId, file, cause);
+    try {
+      var bytes = new ByteArrayOutputStream();
+      encode(entry, bytes);
+      try (var channel = FileChannel.open(file, CREATE, WRITE, APPEND)) {
+        var buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(false);
+      }
+    } catch (IOException e) {
+      logger.error("Unable to write message {} to {}", entry.msgId, file, e);
+    }
+  }
+
+  private void deadLettered(Entry entry) {
+    unapplied.remove(entry.msgId);
+    entry.applied.complete(null);
+    try {
+      onDeadLettered.accept(entry);
+    } catch (RuntimeException e) {
+      logger.warn("Dead-letter hook failed for message {}", entry.msgId, e);
+    }
+  }
+
+  // Skips messages already inserted or archived, in case a crash came
+  // between inserting a batch and saving the applied position
+  private void insert(List<Entry> batch) {
+    var rows = new ArrayList<List<?>>(batch.size());
+    for (var entry : batch) {
+      rows.add(List.of(entry.spaceId, entry.msgId, entry.time, entry.author,
+          entry.text, entry.msgId, entry.msgId));
+    }
+    database.withVoidTransaction(tx -> database.updateBatch(
+        "INSERT INTO messages(space_id, msg_id, msg_time, author, msg_text) " +
+            "SELECT ?, ?, ?, ?, ? FROM DUAL WHERE NOT EXISTS " +
+            "(SELECT 1 FROM messages WHERE msg_id = ?) AND NOT EXISTS " +
+            "(SELECT 1 FROM archived_messages WHERE msg_id = ?)",
+        rows));
+  }
+
+  private void replay() throws IOException {
+    var applied = loadApplied();
+    var paths = segmentPaths();
+    for (var path : paths) {
+      var number = segmentNumber(path);
+      segmentNumber = number + 1;
+      if (applied != null && number < applied[0]) {
+        continue;
+      }
+      var count = 0;
+      try (var counter = new CountingInputStream(new BufferedInputStream(
+          Files.newInputStream(path)))) {
+        var in = new DataInputStream(counter);
+        Entry entry;
+        while ((entry = decode(in)) != null) {
+          entry.segment = number;
+          entry.offset = counter.getCount();
+          if (applied != null && number == applied[0] && entry.offset <= applied[1]) {
+            continue;
+          }
+          unapplied.put(entry.msgId, entry);
+          applyQueue.add(entry);
+          ++count;
+        }
+      }
+      logger.info("Replaying {} messages from {}", count, path);
+    }
+    activeSegment = segmentNumber;
+    deleteSegmentsBefore(applyQueue.isEmpty() ? activeSegment : applyQueue.peek().segment);
+  }
+
+  private void deleteSegmentsBefore(long number) {
+    try {
+      for (var path : segmentPaths()) {
+        if (segmentNumber(path) < number) {
+          Files.deleteIfExists(path);
+        }
+      }
+    } catch (IOException e) {
+      logger.warn("Unable to delete applied message log segments", e);
+    }
+  }
+
+  private List<Path> segmentPaths() throws IOException {
+    var paths = new ArrayList<Path>();
+    try (var files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+      files.forEach(paths::add);
+    }
+    Collections.sort(paths);
+    return paths;
+  }
+
+  private Path segmentPath(long number) {
+    return directory.resolve(String.format("messages-%020d%s", number, SEGMENT_SUFFIX));
+  }
+
+  private static long segmentNumber(Path path) {
+    var name = path.getFileName().toString();
+    return Long.parseLong(name.substring("messages-".length(),
+        name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  static void encode(Entry entry, ByteArrayOutputStream out) throws IOException {
+    var body = new ByteArrayOutputStream();
+    var data = new DataOutputStream(body);
+    data.writeLong(entry.spaceId);
+    data.writeLong(entry.msgId);
+    data.writeLong(entry.time.toEpochMilli());
+    data.writeUTF(entry.author);
+    data.writeUTF(entry.text);
+
+    var bytes = body.toByteArray();
+    var crc = new CRC32();
+    crc.update(bytes);
+    var header = new DataOutputStream(out);
+    header.writeInt(bytes.length);
+    header.writeInt((int) crc.getValue());
+    out.write(bytes);
+  }
+
+  /**
+   * Reads the next record, or returns null at the end of the log or at a
+   * record torn by a crash.
+   */
+  static Entry decode(DataInputStream in) throws IOException {
+    try {
+      var length = in.readInt();
+      var checksum = in.readInt();
+      if (length <= 0 || length > 1 << 20) {
+        return null;
+      }
+      var bytes = new byte[length];
+      in.readFully(bytes);
+      var crc = new CRC32();
+      crc.update(bytes);
+      if ((int) crc.getValue() != checksum) {
+        return null;
+      }
+      var data = new DataInputStream(new ByteArrayInputStream(bytes));
+      return new Entry(data.readLong(), data.readLong(),
+          Instant.ofEpochMilli(data.readLong()), data.readUTF(), data.readUTF());
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  static class Entry {
+    final long spaceId;
+    final long msgId;
+    final Instant time;
+    final String author;
+    final String text;
+    final CompletableFuture<Void> applied = new CompletableFuture<>();
+    // Where the record ends in the log, set once it is written
+    volatile long segment;
+    volatile long offset;
+
+    Entry(long spaceId, long msgId, Instant time, String author, String text) {
+      this.spaceId = spaceId;
+      this.msgId = msgId;
+      this.time = time;
+      this.author = author;
+      this.text = text;
+    }
+  }
+}
@@ -0,0 +1,303 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Supplier;
+
+import javax.servlet.*;
+import javax.servlet.http.*;
+
+import org.slf4j.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Pushes new messages to subscribers of a space as server-sent events.
+ * Connections are held open with servlet async and written with
+ * non-blocking IO from a single thread, so idle subscribers cost a buffer
+ * rather than a thread. Each subscriber has a bounded queue; one that
+ * falls too far behind is disconnected and can reconnect with the id of
+ * the last event it saw to pick up where it left off.
+ */
+class MessageStream {
+  private static final Logger logger = LoggerFactory.getLogger(MessageStream.class);
+
+  private static final Event HEARTBEAT = new Event(":\n\n");
+  private static final Event RESYNC = new Event("event: resync\ndata: {}\n\n");
+  private static final int BACKLOG_THREADS = 4;
+  private static final int BACKLOG_QUEUE_SIZE = 1000;
+
+  private final int queueCapacity;
+  private final int maxSubscribers;
+  private final Map<Long, Set<Subscriber>> spaces = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService executor;
+  // Backlog queries for resuming clients run here, so that a reconnect
+  // storm queues behind a few database threads rather than holding up
+  // live delivery on the stream thread
+  private final ThreadPoolExecutor backlogExecutor;
+  private final LongAdder disconnected;
+  private final LongAdder backlogRejected;
+
+  MessageStream(MetricsController metrics, int queueCapacity, int maxSubscribers) {
+    this.queueCapacity = queueCapacity;
+    this.maxSubscribers = maxSubscribers;
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "message-stream");
+      thread.setDaemon(true);
+      return thread;
+    });
+    var backlogThreads = new AtomicInteger();
+    this.backlogExecutor = new ThreadPoolExecutor(BACKLOG_THREADS, BACKLOG_THREADS,
+        0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(BACKLOG_QUEUE_SIZE),
+        runnable -> {
+          var thread = new Thread(runnable, "message-stream-backlog-" + backlogThreads.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    this.disconnected = metrics.counter("messages.stream.overflow_disconnects");
+    this.backlogRejected = metrics.counter("messages.stream.backlog_rejected");
+    metrics.gauge("messages.stream.backlog_queue", () -> backlogExecutor.getQueue().size());
+    metrics.gauge("messages.stream.subscribers", this::subscriberCount);
+    executor.scheduleAtFixedRate(this::heartbeat, 15, 15, TimeUnit.SECONDS);
+  }
+
+  /**
+   * An event to send. Ids are "millis.msgId" so that a resuming client
+   * can be sent everything after the last event it saw.
+   */
+  static class Event {
+    final long msgId;
+    final long time;
+    final byte[] bytes;
+
+    Event(long msgId, Instant time, String json) {
+      this.msgId = msgId;
+      this.time = time.toEpochMilli();
+      this.bytes = ("id: " + this.time + "." + msgId + "\ndata: " + json + "\n\n")
+          .getBytes(UTF_8);
+    }
+
+    private Event(String control) {
+      this.msgId = -1;
+      this.time = -1;
+      this.bytes = control.getBytes(UTF_8);
+    }
+
+    boolean isAfter(long[] lastSeen) {
+      return time > lastSeen[0] || (time == lastSeen[0] && msgId > lastSeen[1]);
+    }
+  }
+
+  /** Parses an event id into its time and message id, or null. */
+  static long[] parseEventId(String eventId) {
+    if (eventId == null) {
+      return null;
+    }
+    var parts = eventId.split("\\.", 2);
+    if (parts.length != 2) {
+      throw new IllegalArgumentException("invalid event id");
+    }
+    return new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]) };
+  }
+
+  void publish(long spaceId, Event event) {
+    var subscribers = spaces.get(spaceId);
+    if (subscribers != null && !subscribers.isEmpty()) {
+      executor.execute(() -> subscribers.forEach(s -> s.offer(event)));
+    }
+  }
+
+  /**
+   * Takes over the response, which must not have been committed, and
+   * streams events for the space to it. If lastSeen is not null, missed
+   * events are first sent from the backlog, which should return messages
+   * after that point in event order, at most queueCapacity + 1 of them.
+   */
+  void subscribe(HttpServletRequest request, HttpServletResponse response,
+      long spaceId, long[] lastSeen, Supplier<List<Event>> backlog) throws IOException {
+    if (subscriberCount() >= maxSubscribers
+        || (lastSeen != null && backlogExecutor.getQueue().remainingCapacity() == 0)) {
+      if (lastSeen != null) {
+        backlogRejected.increment();
+      }
+      response.setHeader("Retry-After", "5");
+      response.sendError(503);
+      return;
+    }
+    response.setContentType("text/event-stream;charset=utf-8");
+    response.setHeader("Cache-Control", "no-store");
+    response.setHeader("X-Accel-Buffering", "no");
+    response.flushBuffer();
+
+    var async = request.startAsync();
+    async.setTimeout(0);
+    var subscriber = new Subscriber(spaceId, async, response.getOutputStream(), lastSeen);
+    async.addListener(subscriber);
+    // Events published from here on are queued until the backlog is sent
+    spaces.computeIfAbsent(spaceId, id -> ConcurrentHashMap.newKeySet()).add(subscriber);
+
+    if (lastSeen == null) {
+      executor.execute(() -> subscriber.start(List.of()));
+      return;
+    }
+    try {
+      CompletableFuture.supplyAsync(backlog, backlogExecutor)
+          .whenCompleteAsync((events, e) -> {
+            if (e != null) {
+              logger.warn("Unable to start message stream for space {}", spaceId, e);
+              subscriber.close();
+            } else {
+              subscriber.start(events);
+            }
+          }, executor);
+    } catch (RejectedExecutionException e) {
+      // The queue filled after the check above, so the client retries
+      backlogRejected.increment();
+      subscriber.close();
+    }
+  }
+
+  private void heartbeat() {
+    spaces.values().forEach(subscribers -> subscribers.forEach(Subscriber::heartbeat));
+  }
+
+  private long subscriberCount() {
+    return spaces.values().stream().mapToLong(Set::size).sum();
+  }
+
+  private class Subscriber implements WriteListener, AsyncListener {
+    private final long spaceId;
+    private final AsyncContext async;
+    private final ServletOutputStream out;
+    private final Deque<Event> queue = new ArrayDeque<>();
+    private final long[] lastSeen;
+    // Messages already sent from the backlog, which may be published again
+    private Set<Long> backlogIds = Set.of();
+    private boolean started;
+    private boolean closed;
+
+    Subscriber(long spaceId, AsyncContext async, ServletOutputStream out, long[] lastSeen) {
+      this.spaceId = spaceId;
+      this.async = async;
+      this.out = out;
+      this.lastSeen = lastSeen;
+    }
+
+    synchronized void start(List<Event> backlog) {
+      if (backlog.size() > queueCapacity) {
+        // Too much was missed, so the client should list messages instead
+        queue.clear();
+        queue.add(RESYNC);
+        closed = true;
+        remove();
+      } else {
+        backlogIds = new HashSet<>();
+        var published = new ArrayList<>(queue);
+        queue.clear();
+        for (var event : backlog) {
+          queue.add(event);
+          backlogIds.add(event.msgId);
+        }
+        for (var event : published) {
+          if (!backlogIds.contains(event.msgId)) {
+            queue.add(event);
+          }
+        }
+      }
+      started = true;
+      out.setWriteListener(this);
+    }
+
+    synchronized void offer(Event event) {
+      if (closed || (lastSeen != null && !event.isAfter(lastSeen))
+          || backlogIds.contains(event.msgId)) {
+        return;
+      }
+      if (queue.size() >= queueCapacity) {
+        disconnected.increment();
+        close();
+        return;
+      }
+      queue.add(event);
+      if (started) {
+        drain();
+      }
+    }
+
+    synchronized void heartbeat() {
+      if (started && !closed && queue.isEmpty()) {
+        queue.add(HEARTBEAT);
+        drain();
+      }
+    }
+
+    @Override
+    public synchronized void onWritePossible() {
+      drain();
+    }
+
+    private void drain() {
+      try {
+        while (!queue.isEmpty()) {
+          if (!out.isReady()) {
+            // onWritePossible will be called once the client catches up
+            return;
+          }
+          out.write(queue.poll().bytes);
+        }
+        if (out.isReady()) {
+          out.flush();
+        }
+        if (closed && out.isReady()) {
+          async.complete();
+        }
+      } catch (IOException | IllegalStateException e) {
+        close();
+      }
+    }
+
+    synchronized void close() {
+      closed = true;
+      remove();
+      try {
+        async.complete();
+      } catch (IllegalStateException e) {
+        // Already completed
+      }
+    }
+
+    private void remove() {
+      var subscribers = spaces.get(spaceId);
+      if (subscribers != null) {
+        subscribers.remove(this);
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      close();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      remove();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.LongSupplier;
+
+import org.json.JSONObject;
+import spark.*;
+
+public class MetricsController {
+  private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+  private final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+  private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+  public LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, n -> new LongAdder());
+  }
+
+  public Timer timer(String name) {
+    return timers.computeIfAbsent(name, n -> new Timer());
+  }
+
+  public void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  public JSONObject readMetrics(Request request, Response response) {
+    var json = new JSONObject();
+    counters.forEach((name, counter) -> json.put(name, counter.sum()));
+    gauges.forEach((name, gauge) -> json.put(name, gauge.getAsLong()));
+    timers.forEach((name, timer) -> json.put(name, timer.toJson()));
+    return json;
+  }
+
+  /**
+   * Records durations into power-of-two microsecond buckets, which is
+   * enough resolution to estimate percentiles without storing samples.
+   */
+  public static class Timer {
+    private static final int BUCKETS = 40;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    public void record(Duration duration) {
+      recordNanos(duration.toNanos());
+    }
+
+    public void recordNanos(long nanos) {
+      nanos = Math.max(nanos, 0);
+      count.increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulate(nanos);
+      var micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+      var bucket = 64 - Long.numberOfLeadingZeros(micros);
+      buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    public long count() {
+      return count.sum();
+    }
+
+    long totalNanos() {
+      return totalNanos.sum();
+    }
+
+    long maxNanos() {
+      return maxNanos.get();
+    }
+
+    // Bucket counts as "index:count" pairs, skipping empty buckets
+    String histogram() {
+      var joiner = new StringJoiner(",");
+      for (int i = 0; i < BUCKETS; ++i) {
+        var n = buckets.get(i);
+        if (n > 0) {
+          joiner.add(i + ":" + n);
+        }
+      }
+      return joiner.toString();
+    }
+
+    /**
+     * Adds in durations recorded elsewhere, as returned by totalNanos(),
+     * maxNanos() and histogram().
+     */
+    void merge(long totalNanos, long maxNanos, String histogram) {
+      this.totalNanos.add(totalNanos);
+      this.maxNanos.accumulate(maxNanos);
+      if (histogram.isEmpty()) {
+        return;
+      }
+      for (var entry : histogram.split(",")) {
+        var parts = entry.split(":");
+        var n = Long.parseLong(parts[1]);
+        count.add(n);
+        buckets.addAndGet(Math.min(Integer.parseInt(parts[0]), BUCKETS - 1), n);
+      }
+    }
+
+    // Upper bound of the bucket holding the given quantile, in microseconds.
+    long percentileMicros(double quantile) {
+      var total = count.sum();
+      var rank = (long) Math.ceil(total * quantile);
+      var seen = 0L;
+      for (int i = 0; i < BUCKETS; ++i) {
+        seen += buckets.get(i);
+        if (seen >= rank && seen > 0) {
+          return 1L << i;
+        }
+      }
+      return 0;
+    }
+
+    JSONObject toJson() {
+      var total = count.sum();
+      return new JSONObject()
+          .put("count", total)
+          .put("mean_ms", total == 0 ? 0 : totalNanos.sum() / total / 1e6)
+          .put("max_ms", maxNanos.get() / 1e6)
+          .put("p50_ms", percentileMicros(0.5) / 1e3)
+          .put("p99_ms", percentileMicros(0.99) / 1e3);
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+
+import org.json.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Evaluates a JSON policy that is compiled once, at startup, into a tree
+ * of predicates over the typed ABAC facts. A policy is a list of rules,
+ * each with an effect of "deny" or "permit" and a condition:
+ * <pre>
+ *   { "attr": "env.hour", "op": "&lt;", "value": 9 }
+ *   { "all": [ ... ] }, { "any": [ ... ] }, { "not": { ... } }
+ * </pre>
+ * As with the Drools rules, requests are permitted unless a deny rule
+ * matches.
+ */
+public class PolicyAccessController extends ABACAccessController {
+
+    private final Condition[] denyRules;
+
+    public PolicyAccessController(MetricsController metrics) throws IOException {
+        this(metrics, "/com/manning/apisecurityinaction/rules/accessrules.json");
+    }
+
+    public PolicyAccessController(MetricsController metrics, String policyResource)
+            throws IOException {
+        super(metrics);
+        try (var in = PolicyAccessController.class.getResourceAsStream(policyResource)) {
+            if (in == null) {
+                throw new FileNotFoundException(policyResource);
+            }
+            this.denyRules = compile(new JSONObject(new String(in.readAllBytes(), UTF_8)));
+        }
+    }
+
+    @Override
+    boolean checkPermitted(Subject subject, Resource resource,
+                           Action action, Environment env) {
+        for (var rule : denyRules) {
+            if (rule.test(subject, resource, action, env)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @FunctionalInterface
+    interface Condition {
+        boolean test(Subject subject, Resource resource, Action action, Environment env);
+    }
+
+    static Condition[] compile(JSONObject policy) {
+        var denyRules = new ArrayList<Condition>();
+        for (var rule : policy.getJSONArray("rules")) {
+            var json = (JSONObject) rule;
+            var condition = compileCondition(json.getJSONObject("when"));
+            switch (json.getString("effect")) {
+                case "deny":
+                    denyRules.add(condition);
+                    break;
+                case "permit":
+                    // Permit is the default, so permit rules never change a decision
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown effect in rule "
+                            + json.optString("name"));
+            }
+        }
+        return denyRules.toArray(Condition[]::new);
+    }
+
+    private static Condition compileCondition(JSONObject json) {
+        if (json.has("all")) {
+            var conditions = compileAll(json.getJSONArray("all"));
+            return (s, r, a, e) -> {
+                for (var condition : conditions) {
+                    if (!condition.test(s, r, a, e)) {
+                        return false;
+                    }
+                }
+                return true;
+            };
+        }
+        if (json.has("any")) {
+            var conditions = compileAll(json.getJSONArray("any"));
+            return (s, r, a, e) -> {
+                for (var condition : conditions) {
+                    if (condition.test(s, r, a, e)) {
+                        return true;
+                    }
+                }
+                return false;
+            };
+        }
+        if (json.has("not")) {
+            var condition = compileCondition(json.getJSONObject("not"));
+            return (s, r, a, e) -> !condition.test(s, r, a, e);
+        }
+        return compileComparison(json.getString("attr"), json.getString("op"),
+                json.get("value"));
+    }
+
+    private static Condition[] compileAll(JSONArray array) {
+        var conditions = new Condition[array.length()];
+        for (int i = 0; i < conditions.length; ++i) {
+            conditions[i] = compileCondition(array.getJSONObject(i));
+        }
+        return conditions;
+    }
+
+    private static Condition compileComparison(String attr, String op, Object value) {
+        switch (attr) {
+            case "env.hour":
+                return compareInt((s, r, a, e) -> e.getTimeOfDay().getHour(), op, value, attr);
+            case "subject.groups":
+                if (!op.equals("contains")) {
+                    throw new IllegalArgumentException("subject.groups only supports contains");
+                }
+                var group = value.toString();
+                return (s, r, a, e) -> s.getGroups().contains(group);
+            case "subject.user":
+                return compareString((s, r, a, e) -> s.getUser(), op, value, attr);
+            case "resource.path":
+                return compareString((s, r, a, e) -> r.getPath(), op, value, attr);
+            case "resource.space":
+                return compareString((s, r, a, e) -> r.getSpace(), op, value, attr);
+            case "action.method":
+                return compareString((s, r, a, e) -> a.getMethod(), op, value, attr);
+            case "env.ip":
+                return compareString((s, r, a, e) -> e.getIp(), op, value, attr);
+            default:
+                throw new IllegalArgumentException("unknown attribute " + attr);
+        }
+    }
+
+    @FunctionalInterface
+    private interface IntAttribute {
+        int get(Subject subject, Resource resource, Action action, Environment env);
+    }
+
+    @FunctionalInterface
+    private interface StringAttribute {
+        String get(Subject subject, Resource resource, Action action, Environment env);
+    }
+
+    private static Condition compareInt(IntAttribute attribute, String op,
+            Object value, String attr) {
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException(attr + " must be compared to a number");
+        }
+        var operand = ((Number) value).intValue();
+        IntPredicate test;
+        switch (op) {
+            case "==": test = x -> x == operand; break;
+            case "!=": test = x -> x != operand; break;
+            case "<":  test = x -> x < operand; break;
+            case "<=": test = x -> x <= operand; break;
+            case ">":  test = x -> x > operand; break;
+            case ">=": test = x -> x >= operand; break;
+            default:
+                throw new IllegalArgumentException("unsupported operator " + op + " for " + attr);
+        }
+        return (s, r, a, e) -> test.test(attribute.get(s, r, a, e));
+    }
+
+    private static Condition compareString(StringAttribute attribute, String op,
+            Object value, String attr) {
+        switch (op) {
+            case "==": {
+                var operand = value.toString();
+                return (s, r, a, e) -> operand.equals(attribute.get(s, r, a, e));
+            }
+            case "!=": {
+                var operand = value.toString();
+                return (s, r, a, e) -> !operand.equals(attribute.get(s, r, a, e));
+            }
+            case "startsWith": {
+                var operand = value.toString();
+                return (s, r, a, e) -> {
+                    var actual = attribute.get(s, r, a, e);
+                    return actual != null && actual.startsWith(operand);
+                };
+            }
+            case "in": {
+                if (!(value instanceof JSONArray)) {
+                    throw new IllegalArgumentException(attr + " in needs an array");
+                }
+                var operands = new HashSet<String>();
+                for (var item : (JSONArray) value) {
+                    operands.add(item.toString());
+                }
+                return (s, r, a, e) -> operands.contains(attribute.get(s, r, a, e));
+            }
+            default:
+                throw new IllegalArgumentException("unsupported operator " + op + " for " + attr);
+        }
+    }
+}
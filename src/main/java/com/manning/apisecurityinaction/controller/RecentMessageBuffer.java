@@ -0,0 +1,189 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dalesbred.Database;
+
+import com.google.common.cache.*;
+
+/**
+ * Per-space ring buffers of the most recent message ids and timestamps,
+ * warmed from the database on first access and appended to by postMessage.
+ * Only posts made through this replica are appended, so buffers are
+ * reloaded once they reach maxAge to bound how stale they can get when
+ * several replicas share a space.
+ */
+class RecentMessageBuffer {
+  private final Database database;
+  private final int capacity;
+  private final LoadingCache<Long, SpaceBuffer> buffers;
+  // Buffers whose loads are in progress, which posts and deletes are also
+  // applied to so that none made while the query runs are missed
+  private final Map<Long, SpaceBuffer> loading = new ConcurrentHashMap<>();
+
+  RecentMessageBuffer(Database database, int capacityPerSpace,
+      long maxTotalEntries, Duration maxAge) {
+    this.database = database;
+    this.capacity = capacityPerSpace;
+    this.buffers = CacheBuilder.newBuilder()
+        .maximumWeight(maxTotalEntries)
+        .weigher((Long spaceId, SpaceBuffer buffer) -> capacityPerSpace)
+        .expireAfterWrite(maxAge)
+        .build(CacheLoader.from(this::load));
+  }
+
+  /**
+   * Returns the ids of messages in the space posted at or after the given
+   * time, oldest first, or empty if the buffer does not reach back that far.
+   */
+  Optional<List<Long>> findSince(long spaceId, Instant since) {
+    var buffer = buffers.getUnchecked(spaceId);
+    // Only once the cache holds the buffer can appends stop going here
+    loading.remove(spaceId, buffer);
+    return buffer.findSince(since.toEpochMilli());
+  }
+
+  void append(long spaceId, long msgId, Instant time) {
+    var buffer = buffers.getIfPresent(spaceId);
+    if (buffer != null) {
+      buffer.append(msgId, time.toEpochMilli());
+    }
+    var loadingBuffer = loading.get(spaceId);
+    if (loadingBuffer != null && loadingBuffer != buffer) {
+      loadingBuffer.append(msgId, time.toEpochMilli());
+    }
+  }
+
+  void remove(long spaceId, long msgId) {
+    var buffer = buffers.getIfPresent(spaceId);
+    if (buffer != null) {
+      buffer.remove(msgId);
+    }
+    var loadingBuffer = loading.get(spaceId);
+    if (loadingBuffer != null && loadingBuffer != buffer) {
+      loadingBuffer.remove(msgId);
+    }
+  }
+
+  private SpaceBuffer load(long spaceId) {
+    // Registered before the query, so a post that commits after the query
+    // has read the table is still appended to this buffer
+    var buffer = new SpaceBuffer(capacity);
+    loading.put(spaceId, buffer);
+    try {
+      var rows = database.findAll(row -> new long[] {
+              row.getLong(1), row.getTimestamp(2).toInstant().toEpochMilli() },
+          "SELECT msg_id, msg_time FROM messages WHERE space_id = ? " +
+              "ORDER BY msg_time DESC, msg_id DESC LIMIT ?",
+          spaceId, capacity + 1);
+      buffer.merge(rows, capacity);
+      return buffer;
+    } catch (RuntimeException e) {
+      loading.remove(spaceId, buffer);
+      throw e;
+    }
+  }
+
+  static class SpaceBuffer {
+    private final long[] ids;
+    private final long[] times;
+    private int head;
+    private int size;
+    // Every message newer than this is guaranteed to be in the buffer.
+    private long evictedTime = Long.MIN_VALUE;
+    // Deleted while loading, so not to be added back from the query results
+    private Set<Long> removedWhileLoading = new HashSet<>();
+
+    SpaceBuffer(int capacity) {
+      this.ids = new long[capacity];
+      this.times = new long[capacity];
+    }
+
+    synchronized Optional<List<Long>> findSince(long since) {
+      if (since <= evictedTime) {
+        return Optional.empty();
+      }
+      var result = new ArrayList<Long>();
+      for (int i = 0; i < size; ++i) {
+        var slot = slot(i);
+        if (times[slot] >= since) {
+          result.add(ids[slot]);
+        }
+      }
+      return Optional.of(result);
+    }
+
+    synchronized void append(long msgId, long time) {
+      if (time <= evictedTime) {
+        return;
+      }
+      // Find the insertion point, keeping entries ordered by time. Posts
+      // almost always arrive in order so this normally stops immediately.
+      int pos = size;
+      while (pos > 0 && times[slot(pos - 1)] > time) {
+        --pos;
+      }
+      for (int i = 0; i < size; ++i) {
+        if (ids[slot(i)] == msgId) {
+          return;
+        }
+      }
+      if (size == ids.length) {
+        if (pos == 0) {
+          evictedTime = time;
+          return;
+        }
+        evictedTime = Math.max(evictedTime, times[head]);
+        head = slot(1);
+        --size;
+        --pos;
+      }
+      for (int i = size; i > pos; --i) {
+        ids[slot(i)] = ids[slot(i - 1)];
+        times[slot(i)] = times[slot(i - 1)];
+      }
+      ids[slot(pos)] = msgId;
+      times[slot(pos)] = time;
+      ++size;
+    }
+
+    /**
+     * Adds rows loaded from the database, newest first, to anything
+     * appended while they were being read.
+     */
+    synchronized void merge(List<long[]> rows, int capacity) {
+      if (rows.size() > capacity) {
+        evictedTime = Math.max(evictedTime, rows.get(capacity)[1]);
+      }
+      for (int i = Math.min(rows.size(), capacity) - 1; i >= 0; --i) {
+        if (!removedWhileLoading.contains(rows.get(i)[0])) {
+          append(rows.get(i)[0], rows.get(i)[1]);
+        }
+      }
+      removedWhileLoading = null;
+    }
+
+    synchronized void remove(long msgId) {
+      if (removedWhileLoading != null) {
+        removedWhileLoading.add(msgId);
+      }
+      for (int pos = 0; pos < size; ++pos) {
+        if (ids[slot(pos)] == msgId) {
+          for (int i = pos; i < size - 1; ++i) {
+            ids[slot(i)] = ids[slot(i + 1)];
+            times[slot(i)] = times[slot(i + 1)];
+          }
+          --size;
+          return;
+        }
+      }
+    }
+
+    private int slot(int i) {
+      return (head + i) % ids.length;
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.time.*;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.dalesbred.Database;
+import org.json.*;
+import org.slf4j.*;
+import spark.*;
+
+/**
+ * Aggregates finished requests into per-minute counts and latency
+ * histograms keyed by method, route and status. Completed minutes are
+ * flushed to the request_rollups table, so summaries cost the same however
+ * many requests were served.
+ */
+public class RequestRollups {
+  private static final Logger logger = LoggerFactory.getLogger(RequestRollups.class);
+
+  private static final int MAX_KEYS_PER_MINUTE = 1000;
+  private static final Duration FLUSH_GRACE = Duration.ofSeconds(5);
+  private static final int MAX_SUMMARY_MINUTES = 24 * 60;
+
+  private final Database database;
+  private final Deque<Minute> completed = new ConcurrentLinkedDeque<>();
+  private final Object flushLock = new Object();
+  private volatile Minute current = new Minute(currentMinute());
+
+  private final LongAdder flushErrors;
+
+  public RequestRollups(Database database, MetricsController metrics) {
+    this.database = database;
+    this.flushErrors = metrics.counter("rollups.flush_errors");
+    metrics.gauge("rollups.unflushed_minutes", completed::size);
+
+    Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "request-rollups");
+      thread.setDaemon(true);
+      return thread;
+    }).scheduleWithFixedDelay(() -> flush(false), 15, 15, TimeUnit.SECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(true)));
+  }
+
+  /**
+   * Records a finished request against the path template of the route that
+   * handled it, such as /spaces/:spaceId/messages/:msgId. Requests halted
+   * before reaching a route, or that matched none, have a null route and
+   * are grouped together.
+   */
+  void record(String method, String route, int status, Long durationNanos) {
+    var minute = current;
+    var now = currentMinute();
+    if (minute.start < now) {
+      minute = advance(now);
+    }
+
+    var key = new Key(method, route != null ? route : "unmatched", status);
+    var stats = minute.stats.get(key);
+    if (stats == null) {
+      if (minute.stats.size() >= MAX_KEYS_PER_MINUTE) {
+        key = new Key(method, "other", status);
+      }
+      stats = minute.stats.computeIfAbsent(key, k -> new Stats());
+    }
+    stats.requests.increment();
+    if (durationNanos != null) {
+      stats.latency.recordNanos(durationNanos);
+    }
+  }
+
+  private synchronized Minute advance(long now) {
+    if (current.start < now) {
+      completed.add(current);
+      current = new Minute(now);
+    }
+    return current;
+  }
+
+  // Moves the current minute to completed even though it is not over
+  private synchronized void rotate() {
+    completed.add(current);
+    current = new Minute(currentMinute());
+  }
+
+  private static long currentMinute() {
+    return System.currentTimeMillis() / 60_000 * 60_000;
+  }
+
+  private void flush(boolean all) {
+    synchronized (flushLock) {
+      if (all) {
+        rotate();
+      }
+      // Give requests that picked up a minute just before it ended time to
+      // finish recording into it
+      var cutoff = System.currentTimeMillis() - 60_000 - FLUSH_GRACE.toMillis();
+      Minute minute;
+      while ((minute = completed.peek()) != null && (all || minute.start <= cutoff)) {
+        if (!insert(minute)) {
+          return;
+        }
+        completed.remove();
+      }
+    }
+  }
+
+  private boolean insert(Minute minute) {
+    var rows = new ArrayList<List<?>>();
+    var time = Instant.ofEpochMilli(minute.start);
+    minute.stats.forEach((key, stats) -> rows.add(List.of(time,
+        key.method, key.route, key.status, stats.requests.sum(),
+        stats.latency.totalNanos(), stats.latency.maxNanos(),
+        stats.latency.histogram())));
+    if (rows.isEmpty()) {
+      return true;
+    }
+    try {
+      database.updateBatch("INSERT INTO request_rollups(minute, method, " +
+          "route, status, request_count, total_nanos, max_nanos, histogram) " +
+          "VALUES(?, ?, ?, ?, ?, ?, ?, ?)", rows);
+      return true;
+    } catch (RuntimeException e) {
+      flushErrors.increment();
+      logger.error("Failed to flush request rollups for {}", time, e);
+      return false;
+    }
+  }
+
+  /**
+   * Summarises the last {@code minutes} minutes (default 60) per route:
+   * request count, error rate, counts by status and latency percentiles.
+   */
+  public JSONArray readSummary(Request request, Response response) {
+    var minutes = request.queryParams("minutes") != null
+        ? Integer.parseInt(request.queryParams("minutes"))
+        : 60;
+    if (minutes < 1 || minutes > MAX_SUMMARY_MINUTES) {
+      throw new IllegalArgumentException("invalid minutes");
+    }
+    var since = Instant.ofEpochMilli(currentMinute())
+        .minus(minutes - 1, ChronoUnit.MINUTES);
+
+    // Snapshot the minutes not yet flushed, which only exist in memory.
+    // They are the most recent, so the database has everything before the
+    // earliest of them, and rows flushed after the snapshot are not read.
+    // Reading current first means a minute that moves to completed
+    // meanwhile is seen twice rather than missed.
+    List<Minute> unflushed;
+    synchronized (flushLock) {
+      var latest = current;
+      unflushed = new ArrayList<>(completed);
+      if (!unflushed.contains(latest)) {
+        unflushed.add(latest);
+      }
+    }
+    var flushedBefore = Instant.ofEpochMilli(unflushed.get(0).start);
+
+    var routes = new TreeMap<String, RouteSummary>();
+    database.executeQuery(rows -> {
+      while (rows.next()) {
+        routes.computeIfAbsent(rows.getString("method") + " " + rows.getString("route"),
+            k -> new RouteSummary()).add(rows.getInt("status"),
+            rows.getLong("request_count"), rows.getLong("total_nanos"),
+            rows.getLong("max_nanos"), rows.getString("histogram"));
+      }
+      return null;
+    }, "SELECT * FROM request_rollups WHERE minute >= ? AND minute < ?",
+        since, flushedBefore);
+
+    for (var minute : unflushed) {
+      if (minute.start < since.toEpochMilli()) {
+        continue;
+      }
+      minute.stats.forEach((key, stats) ->
+          routes.computeIfAbsent(key.method + " " + key.route, k -> new RouteSummary())
+              .add(key.status, stats.requests.sum(), stats.latency.totalNanos(),
+                  stats.latency.maxNanos(), stats.latency.histogram()));
+    }
+
+    var result = new JSONArray();
+    routes.forEach((route, summary) -> {
+      var parts = route.split(" ", 2);
+      result.put(summary.toJson().put("method", parts[0]).put("route", parts[1]));
+    });
+    return result;
+  }
+
+  private static class Minute {
+    final long start;
+    final Map<Key, Stats> stats = new ConcurrentHashMap<>();
+
+    Minute(long start) {
+      this.start = start;
+    }
+  }
+
+  private static class Key {
+    final String method;
+    final String route;
+    final int status;
+
+    Key(String method, String route, int status) {
+      this.method = method;
+      this.route = route;
+      this.status = status;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      var that = (Key) other;
+      return status == that.status && method.equals(that.method)
+          && route.equals(that.route);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(method, route, status);
+    }
+  }
+
+  private static class Stats {
+    // Requests halted before the audit start hook have no latency, so
+    // this can be larger than latency.count()
+    final LongAdder requests = new LongAdder();
+    final MetricsController.Timer latency = new MetricsController.Timer();
+  }
+
+  private static class RouteSummary {
+    final Map<Integer, Long> statuses = new TreeMap<>();
+    final MetricsController.Timer latency = new MetricsController.Timer();
+    long requests;
+    long errors;
+
+    void add(int status, long count, long totalNanos, long maxNanos, String histogram) {
+      statuses.merge(status, count, Long::sum);
+      requests += count;
+      if (status >= 500) {
+        errors += count;
+      }
+      latency.merge(totalNanos, maxNanos, histogram);
+    }
+
+    JSONObject toJson() {
+      var byStatus = new JSONObject();
+      statuses.forEach((status, count) -> byStatus.put(status.toString(), count));
+      return new JSONObject()
+          .put("requests", requests)
+          .put("errors", errors)
+          .put("error_rate", requests == 0 ? 0 : (double) errors / requests)
+          .put("statuses", byStatus)
+          .put("latency", latency.toJson());
+    }
+  }
+}
@@ -0,0 +1,478 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * An audit sink that appends fixed-size binary records to segment files
+ * on local disk instead of writing to the database. Concurrent writers
+ * are grouped so that each group shares a single fsync, and callers return
+ * once their record is durable. Segments are memory-mapped for reading,
+ * and each keeps a sparse index of the latest time seen every
+ * INDEX_INTERVAL records so queries can skip straight to audit_time.
+ * Retention deletes whole segments once everything in them is too old.
+ * <p>
+ * Record layout, big-endian:
+ * <pre>
+ *   0  int    CRC32 of bytes 4-167
+ *   4  long   audit id, or Long.MIN_VALUE if none
+ *  12  long   audit time, epoch millis
+ *  20  int    status, or -1 if none
+ *  24  byte   method length, then 10 bytes of method
+ *  35  byte   user length, then 30 bytes of user id
+ *  66  short  path length, then 100 bytes of path
+ * </pre>
+ * The limits match the column sizes of the audit_log table.
+ */
+public class SegmentedAuditLog implements AuditSink {
+  private static final Logger logger = LoggerFactory.getLogger(SegmentedAuditLog.class);
+
+  static final int RECORD_SIZE = 168;
+  private static final int METHOD_SIZE = 10;
+  private static final int USER_SIZE = 30;
+  private static final int PATH_SIZE = 100;
+  private static final int INDEX_INTERVAL = 256;
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String INDEX_SUFFIX = ".idx";
+
+  private final Path directory;
+  private final int recordsPerSegment;
+  private final Duration retention;
+  private final List<Segment> segments = new CopyOnWriteArrayList<>();
+  private final AtomicLong nextAuditId = new AtomicLong(1);
+
+  private final Object lock = new Object();
+  private List<AuditEvent> pending = new ArrayList<>();
+  private CompletableFuture<Void> pendingCommit = new CompletableFuture<>();
+  // Why the writer thread stopped, after which every write fails
+  private Throwable writerStopped;
+
+  private final MetricsController.Timer commitTimer;
+
+  public SegmentedAuditLog(Path directory, long segmentBytes, Duration retention,
+      MetricsController metrics) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.recordsPerSegment = (int) Math.min(segmentBytes / RECORD_SIZE,
+        Integer.MAX_VALUE / RECORD_SIZE);
+    this.retention = retention;
+    this.commitTimer = metrics.timer("audit.log.commit.latency");
+    metrics.gauge("audit.log.segments", segments::size);
+
+    open();
+
+    var writer = new Thread(this::run, "audit-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+    Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "audit-log-retention");
+      thread.setDaemon(true);
+      return thread;
+    }).scheduleAtFixedRate(this::deleteExpiredSegments, 1, 60, TimeUnit.MINUTES);
+  }
+
+  @Override
+  public long nextAuditId() {
+    return nextAuditId.getAndIncrement();
+  }
+
+  @Override
+  public void write(AuditEvent event) {
+    CompletableFuture<Void> commit;
+    synchronized (lock) {
+      if (writerStopped != null) {
+        throw new UncheckedIOException("audit log writer has stopped",
+            new IOException(writerStopped));
+      }
+      pending.add(event);
+      commit = pendingCommit;
+      lock.notifyAll();
+    }
+    try {
+      commit.join();
+    } catch (CompletionException e) {
+      throw new UncheckedIOException("unable to write audit record",
+          e.getCause() instanceof IOException
+              ? (IOException) e.getCause() : new IOException(e.getCause()));
+    }
+  }
+
+  /**
+   * Scans records in the order they were appended. Cursors are record
+   * positions, so pages never skip or repeat records even though times are
+   * only roughly ordered.
+   */
+  @Override
+  public void query(AuditQuery query, EventHandler handler) throws IOException {
+    var sinceMillis = query.since == null ? Long.MIN_VALUE : query.since.toEpochMilli();
+    var afterSegment = Long.MIN_VALUE;
+    var afterIndex = -1;
+    if (query.after != null) {
+      var cursor = query.after.split("\\.", 2);
+      if (cursor.length != 2) {
+        throw new IllegalArgumentException("invalid cursor");
+      }
+      afterSegment = Long.parseLong(cursor[0]);
+      afterIndex = Integer.parseInt(cursor[1]);
+    }
+
+    var matched = 0;
+    for (var segment : segments) {
+      if (segment.number < afterSegment || segment.maxTime < sinceMillis) {
+        continue;
+      }
+      var buffer = segment.map.duplicate();
+      var count = segment.count;
+      var start = segment.firstCandidate(sinceMillis);
+      if (segment.number == afterSegment) {
+        start = Math.max(start, afterIndex + 1);
+      }
+      for (int i = start; i < count; ++i) {
+        var event = readRecord(buffer, i);
+        if (event != null && query.matches(event)) {
+          handler.handle(event, segment.number + "." + i);
+          if (++matched >= query.limit) {
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  private void run() {
+    CompletableFuture<Void> commit = null;
+    try {
+      while (true) {
+        List<AuditEvent> batch;
+        synchronized (lock) {
+          while (pending.isEmpty()) {
+            lock.wait();
+          }
+          batch = pending;
+          commit = pendingCommit;
+          pending = new ArrayList<>();
+          pendingCommit = new CompletableFuture<>();
+        }
+
+        var start = System.nanoTime();
+        try {
+          append(batch);
+          commit.complete(null);
+        } catch (IOException | RuntimeException e) {
+          logger.error("Failed to append {} audit records", batch.size(), e);
+          commit.completeExceptionally(e);
+        }
+        commit = null;
+        commitTimer.recordNanos(System.nanoTime() - start);
+      }
+    } catch (InterruptedException e) {
+      stopWriter(commit, new IOException("audit log writer interrupted"));
+    } catch (RuntimeException | Error e) {
+      logger.error("Audit log writer failed", e);
+      stopWriter(commit, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Fails the batch being written, if any, and everything waiting for the
+   * next one, so that requests do not block forever on a writer that is
+   * gone, and refuses later writes.
+   */
+  private void stopWriter(CompletableFuture<Void> inFlight, Throwable cause) {
+    synchronized (lock) {
+      writerStopped = cause;
+      pendingCommit.completeExceptionally(cause);
+      pending = new ArrayList<>();
+    }
+    if (inFlight != null) {
+      inFlight.completeExceptionally(cause);
+    }
+  }
+
+  private void append(List<AuditEvent> batch) throws IOException {
+    var buffer = ByteBuffer.allocate(RECORD_SIZE);
+    var active = segments.get(segments.size() - 1);
+    for (var event : batch) {
+      if (active.size() >= recordsPerSegment) {
+        active.channel.force(false);
+        active.publish();
+        active.seal();
+        active = createSegment(active.number + 1);
+        segments.add(active);
+      }
+      encode(event, buffer.clear());
+      active.channel.write(buffer.flip(), (long) active.size() * RECORD_SIZE);
+      active.appended(event);
+    }
+    active.channel.force(false);
+    active.publish();
+  }
+
+  private void open() throws IOException {
+    var paths = new ArrayList<Path>();
+    try (var files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+      files.forEach(paths::add);
+    }
+    Collections.sort(paths);
+
+    var maxId = 0L;
+    for (var path : paths) {
+      var segment = openSegment(path);
+      segments.add(segment);
+      maxId = Math.max(maxId, segment.maxId);
+    }
+    if (segments.isEmpty()) {
+      segments.add(createSegment(0));
+    }
+    nextAuditId.set(maxId + 1);
+  }
+
+  private Segment createSegment(long number) throws IOException {
+    var path = directory.resolve(String.format("audit-%020d%s", number, SEGMENT_SUFFIX));
+    var channel = FileChannel.open(path, CREATE_NEW, READ, WRITE);
+    // Extend the file to its full size up front so that it can be mapped
+    channel.write(ByteBuffer.allocate(1), (long) recordsPerSegment * RECORD_SIZE - 1);
+    var segment = new Segment(number, path, channel, recordsPerSegment);
+    segment.publish();
+    return segment;
+  }
+
+  private Segment openSegment(Path path) throws IOException {
+    var name = path.getFileName().toString();
+    var number = Long.parseLong(name.substring("audit-".length(),
+        name.length() - SEGMENT_SUFFIX.length()));
+    var channel = FileChannel.open(path, READ, WRITE);
+    var segment = new Segment(number, path, channel, recordsPerSegment);
+
+    if (!segment.loadIndex()) {
+      // Not sealed, so scan for the records that made it to disk
+      var buffer = segment.map.duplicate();
+      for (int i = 0; i < recordsPerSegment; ++i) {
+        var event = readRecord(buffer, i);
+        if (event == null) {
+          break;
+        }
+        segment.appended(event);
+      }
+      segment.publish();
+      clearAfter(segment, buffer);
+    }
+    return segment;
+  }
+
+  /**
+   * Blanks any intact records after the first missing or torn one. They
+   * were part of a batch whose sync never completed, so were never
+   * acknowledged, and would otherwise reappear, with audit ids that are
+   * handed out again, once new records fill the gap.
+   */
+  private void clearAfter(Segment segment, ByteBuffer buffer) throws IOException {
+    var empty = ByteBuffer.allocate(RECORD_SIZE);
+    var cleared = 0;
+    for (int i = segment.count + 1; i < recordsPerSegment; ++i) {
+      if (readRecord(buffer, i) != null) {
+        segment.channel.write(empty.clear(), (long) i * RECORD_SIZE);
+        ++cleared;
+      }
+    }
+    if (cleared > 0) {
+      segment.channel.force(false);
+      logger.warn("Cleared {} unacknowledged audit records after a torn record in {}",
+          cleared, segment.path);
+    }
+  }
+
+  private void deleteExpiredSegments() {
+    var cutoff = Instant.now().minus(retention).toEpochMilli();
+    var snapshot = new ArrayList<>(segments);
+    // Never delete the active segment
+    for (var segment : snapshot.subList(0, snapshot.size() - 1)) {
+      if (segment.maxTime < cutoff) {
+        segments.remove(segment);
+        try {
+          segment.channel.close();
+          Files.deleteIfExists(segment.indexPath());
+          Files.deleteIfExists(segment.path);
+          logger.info("Deleted expired audit segment {}", segment.path);
+        } catch (IOException e) {
+          logger.warn("Unable to delete audit segment {}", segment.path, e);
+        }
+      }
+    }
+  }
+
+  static void encode(AuditEvent event, ByteBuffer buffer) {
+    buffer.position(4);
+    buffer.putLong(event.auditId == null ? Long.MIN_VALUE : event.auditId);
+    buffer.putLong(event.time.toEpochMilli());
+    buffer.putInt(event.status == null ? -1 : event.status);
+    putString(buffer, event.method, METHOD_SIZE, false);
+    putString(buffer, event.userId, USER_SIZE, false);
+    putString(buffer, event.path, PATH_SIZE, true);
+
+    var crc = new CRC32();
+    crc.update(buffer.array(), 4, RECORD_SIZE - 4);
+    buffer.putInt(0, (int) crc.getValue());
+    buffer.position(RECORD_SIZE);
+  }
+
+  private static void putString(ByteBuffer buffer, String value, int size, boolean shortLength) {
+    var bytes = value == null ? new byte[0] : value.getBytes(UTF_8);
+    var length = Math.min(bytes.length, size);
+    if (shortLength) {
+      buffer.putShort((short) length);
+    } else {
+      buffer.put((byte) length);
+    }
+    buffer.put(bytes, 0, length);
+    buffer.put(new byte[size - length]);
+  }
+
+  /**
+   * Decodes the record at the given index, or returns null if it is empty
+   * or torn.
+   */
+  static AuditEvent readRecord(ByteBuffer buffer, int index) {
+    var bytes = new byte[RECORD_SIZE];
+    buffer.position(index * RECORD_SIZE);
+    buffer.get(bytes);
+
+    var record = ByteBuffer.wrap(bytes);
+    var crc = new CRC32();
+    crc.update(bytes, 4, RECORD_SIZE - 4);
+    if (record.getInt() != (int) crc.getValue()) {
+      return null;
+    }
+    var auditId = record.getLong();
+    var time = record.getLong();
+    var status = record.getInt();
+    var method = getString(record, METHOD_SIZE, false);
+    var userId = getString(record, USER_SIZE, false);
+    var path = getString(record, PATH_SIZE, true);
+    return new AuditEvent(auditId == Long.MIN_VALUE ? null : auditId,
+        method, path, userId.isEmpty() ? null : userId,
+        status == -1 ? null : status, Instant.ofEpochMilli(time));
+  }
+
+  private static String getString(ByteBuffer record, int size, boolean shortLength) {
+    int length = shortLength ? record.getShort() : record.get();
+    var value = new String(record.array(), record.position(), length, UTF_8);
+    record.position(record.position() + size);
+    return value;
+  }
+
+  private static class Segment {
+    final long number;
+    final Path path;
+    final FileChannel channel;
+    final MappedByteBuffer map;
+    // Latest audit time seen up to every INDEX_INTERVAL'th record. Times
+    // are only roughly ordered, so this running maximum is what lets a
+    // query skip everything before the first entry reaching its start.
+    final List<Long> sparseIndex = new CopyOnWriteArrayList<>();
+    volatile int count;
+    volatile long maxTime = Long.MIN_VALUE;
+    volatile long maxId;
+    private int unpublished;
+    private long unpublishedMaxTime = Long.MIN_VALUE;
+
+    Segment(long number, Path path, FileChannel channel, int capacity) throws IOException {
+      this.number = number;
+      this.path = path;
+      this.channel = channel;
+      this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, (long) capacity * RECORD_SIZE);
+    }
+
+    // Number of records written, including those not yet published
+    int size() {
+      return count + unpublished;
+    }
+
+    // Called by the writer only; readers see new records after publish()
+    void appended(AuditEvent event) {
+      if (size() % INDEX_INTERVAL == 0) {
+        sparseIndex.add(Math.max(unpublishedMaxTime, maxTime));
+      }
+      unpublishedMaxTime = Math.max(unpublishedMaxTime, event.time.toEpochMilli());
+      if (event.auditId != null) {
+        maxId = Math.max(maxId, event.auditId);
+      }
+      ++unpublished;
+    }
+
+    void publish() {
+      maxTime = Math.max(maxTime, unpublishedMaxTime);
+      count += unpublished;
+      unpublished = 0;
+    }
+
+    /**
+     * Index of the first record that could be at or after the given time.
+     * Entry i holds the latest time among records before i * INTERVAL.
+     */
+    int firstCandidate(long sinceMillis) {
+      int lo = 0;
+      int hi = sparseIndex.size() - 1;
+      int result = 0;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if (sparseIndex.get(mid) < sinceMillis) {
+          result = mid;
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      return result * INDEX_INTERVAL;
+    }
+
+    Path indexPath() {
+      return path.resolveSibling(path.getFileName().toString()
+          .replace(SEGMENT_SUFFIX, INDEX_SUFFIX));
+    }
+
+    void seal() throws IOException {
+      try (var out = new DataOutputStream(new BufferedOutputStream(
+          Files.newOutputStream(indexPath())))) {
+        out.writeInt(count);
+        out.writeLong(maxTime);
+        out.writeLong(maxId);
+        out.writeInt(sparseIndex.size());
+        for (var time : sparseIndex) {
+          out.writeLong(time);
+        }
+      }
+    }
+
+    boolean loadIndex() throws IOException {
+      if (!Files.exists(indexPath())) {
+        return false;
+      }
+      try (var in = new DataInputStream(new BufferedInputStream(
+          Files.newInputStream(indexPath())))) {
+        count = in.readInt();
+        maxTime = in.readLong();
+        maxId = in.readLong();
+        var entries = new ArrayList<Long>();
+        for (int i = in.readInt(); i > 0; --i) {
+          entries.add(in.readLong());
+        }
+        sparseIndex.addAll(entries);
+      }
+      return true;
+    }
+  }
+}
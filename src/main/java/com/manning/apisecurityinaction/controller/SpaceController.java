@@ -1,5 +1,7 @@
 package com.manning.apisecurityinaction.controller;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.SQLException;
 import java.time.Duration;
 import java.time.Instant;
@@ -14,22 +16,92 @@ import org.json.JSONObject;
 import spark.Request;
 import spark.Response;
 
-import java.net.*;
-import java.net.http.*;
-import java.net.http.HttpResponse.BodyHandlers;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+
+import com.google.common.cache.*;
+
+import static spark.Spark.halt;
 
 public class SpaceController {
   private final Database database;
   private final CapabilityController capabilityController;
+  private final RecentMessageBuffer recentMessages;
+  private final LinkPreviewEnricher linkPreviews;
+  private final IdAllocator spaceIds;
+  private final IdAllocator msgIds;
+  private final MessageLog messageLog;
+  private final MessageIndex messageIndex;
+  private final MessageStream messageStream;
+  private final SpaceStats spaceStats;
+  private final LoadingCache<Long, SpaceVersion> spaceVersions = CacheBuilder.newBuilder()
+      .maximumSize(100_000)
+      .expireAfterWrite(1, TimeUnit.MINUTES)
+      .build(CacheLoader.from(SpaceVersion::new));
+  private final LongAdder batchMessages;
+  private final MetricsController.Timer batchTimer;
 
   private static final Set<String> DEFINED_ROLES = Set.of("owner", "moderator", "member", "observer");
+  private static final int MAX_BATCH_SIZE = 500;
+  private static final int MAX_MESSAGE_LENGTH = 1024;
+  private static final int STREAM_QUEUE_SIZE = 256;
+
+  public SpaceController(Database database, CapabilityController capabilityController,
+      MetricsController metrics) throws IOException {
+    this(database, capabilityController, metrics, null);
+  }
 
-  public SpaceController(Database database, CapabilityController capabilityController) {
+  /**
+   * If messageLogDir is not null, posted messages are acknowledged once
+   * they are in a local write-ahead log and reach the database later.
+   */
+  public SpaceController(Database database, CapabilityController capabilityController,
+      MetricsController metrics, Path messageLogDir) throws IOException {
     this.database = database;
     this.capabilityController = capabilityController;
+    this.recentMessages = new RecentMessageBuffer(database, 256, 256 * 1024, Duration.ofMinutes(1));
+    this.linkPreviews = new LinkPreviewEnricher(database, metrics, 4, 1000);
+    this.spaceIds = new IdAllocator(database, "space_id_seq", 100);
+    this.msgIds = new IdAllocator(database, "msg_id_seq", 1000);
+    this.batchMessages = metrics.counter("messages.batch.posted");
+    this.batchTimer = metrics.timer("messages.batch.latency");
+    // Link previews are only stored for existing messages, so wait until
+    // the message has been inserted
+    this.messageLog = messageLogDir == null ? null
+        : new MessageLog(database, messageLogDir, 16 * 1024 * 1024, metrics,
+            entry -> linkPreviews.enqueue(entry.msgId, entry.time, entry.text),
+            this::forgetMessage);
+    // The log is only started once the index and stats have read the
+    // table, so each replayed message is in exactly one of the two
+    var logged = messageLog == null ? List.<MessageLog.Entry>of() : messageLog.unapplied();
+    this.messageIndex = new MessageIndex(database, metrics,
+        Duration.ofDays(Long.getLong("messages.index.window.days", 7)));
+    this.spaceStats = new SpaceStats(database, logged);
+    this.messageStream = new MessageStream(metrics, STREAM_QUEUE_SIZE,
+        Integer.getInteger("messages.stream.max_subscribers", 20_000));
+    new MessageArchiver(database, metrics,
+        Integer.getInteger("messages.retention.days", 0), 1000, Duration.ofMinutes(10),
+        (spaceId, msgId) -> {
+          recentMessages.remove(spaceId, msgId);
+          messageIndex.remove(spaceId, msgId);
+          spaceVersions.getUnchecked(spaceId).changed(msgId);
+        });
+    for (var entry : logged) {
+      messageIndex.add(entry.spaceId, entry.msgId, entry.time, entry.text);
+    }
+    if (messageLog != null) {
+      messageLog.start();
+    }
+  }
+
+  // A logged message the database rejected, which was already visible
+  private void forgetMessage(MessageLog.Entry entry) {
+    recentMessages.remove(entry.spaceId, entry.msgId);
+    messageIndex.remove(entry.spaceId, entry.msgId);
+    spaceStats.removed(entry.spaceId, entry.author);
+    spaceVersions.getUnchecked(entry.spaceId).changed(entry.msgId);
   }
 
   public JSONObject createSpace(Request request, Response response)
@@ -50,10 +122,8 @@ public class SpaceController {
           "owner must match authenticated user");
     }
 
+    var spaceId = spaceIds.nextId();
     return database.withTransaction(tx -> {
-      var spaceId = database.findUniqueLong(
-          "SELECT NEXT VALUE FOR space_id_seq;");
-
       database.updateUnique(
           "INSERT INTO spaces(space_id, name, owner) " +
               "VALUES(?, ?, ?);",
@@ -94,16 +164,40 @@ public class SpaceController {
           "author must match authenticated user");
     }
 
-    return database.withTransaction(tx -> {
-      var spaceId = Long.parseLong(request.params(":spaceId"));
-      var msgId = database.findUniqueLong("SELECT NEXT VALUE FOR msg_id_seq;");
-      var message = json.getString("message");
+    var spaceId = Long.parseLong(request.params(":spaceId"));
+    var msgId = msgIds.nextId();
+    var msgTime = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    var message = json.getString("message");
+
+    if (messageLog != null) {
+      // Checked here because a logged message must never fail to insert
+      if (message.length() > MAX_MESSAGE_LENGTH) {
+        throw new IllegalArgumentException("message too long");
+      }
+      messageLog.append(spaceId, msgId, msgTime, author, message);
+      recentMessages.append(spaceId, msgId, msgTime);
+      messageIndex.add(spaceId, msgId, msgTime, message);
+      spaceStats.added(spaceId, author, msgTime);
+      spaceVersions.getUnchecked(spaceId).changed(msgId);
+      publish(new Message(spaceId, msgId, author, msgTime, message));
+      response.status(201);
 
+      var uri = capabilityController.createUri(request, "/spaces/" + spaceId + "/messages/" + msgId, "rd",
+          Duration.ofMinutes(5));
+      var readOnlyUri = capabilityController.createUri(request, "/spaces/" + spaceId + "/messages/" + msgId, "r",
+          Duration.ofDays(365));
+      return new JSONObject()
+          .put("message", message)
+          .put("uri", uri)
+          .put("read-only", readOnlyUri);
+    }
+
+    var result = database.withTransaction(tx -> {
       database.updateUnique(
           "INSERT INTO messages(space_id, msg_id, msg_time," +
               "author, msg_text) " +
-              "VALUES(?, ?, current_timestamp, ?, ?)",
-          spaceId, msgId, author, message);
+              "VALUES(?, ?, ?, ?, ?)",
+          spaceId, msgId, msgTime, author, message);
 
       response.status(201);
 
@@ -117,29 +211,198 @@ public class SpaceController {
           .put("uri", uri)
           .put("read-only", readOnlyUri);
     });
+    recentMessages.append(spaceId, msgId, msgTime);
+    messageIndex.add(spaceId, msgId, msgTime, message);
+    spaceStats.added(spaceId, author, msgTime);
+    spaceVersions.getUnchecked(spaceId).changed(msgId);
+    publish(new Message(spaceId, msgId, author, msgTime, message));
+    linkPreviews.enqueue(msgId, msgTime, message);
+    return result;
   }
 
-  public JSONArray findMessages(Request request, Response response) {
-    var since = Instant.now().minus(1, ChronoUnit.DAYS);
-    if (request.queryParams("since") != null) {
-      since = Instant.parse(request.queryParams("since"));
+  /**
+   * Posts up to MAX_BATCH_SIZE messages by the same author to one space,
+   * inserting them and their capability tokens in a single transaction.
+   */
+  public JSONArray postMessages(Request request, Response response) {
+    var start = System.nanoTime();
+    var json = new JSONObject(request.body());
+
+    var author = json.getString("author");
+    if (!author.matches("[a-zA-Z][a-zA-Z0-9]{1,29}")) {
+      throw new IllegalArgumentException("invalid username: " + author);
     }
+
+    var subject = request.attribute("subject");
+    if (!author.equals(subject)) {
+      throw new IllegalArgumentException(
+          "author must match authenticated user");
+    }
+
+    var texts = json.getJSONArray("messages");
+    if (texts.isEmpty() || texts.length() > MAX_BATCH_SIZE) {
+      throw new IllegalArgumentException(
+          "between 1 and " + MAX_BATCH_SIZE + " messages required");
+    }
+
+    var spaceId = Long.parseLong(request.params(":spaceId"));
+    var msgTime = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    var messages = new ArrayList<String>(texts.length());
+    var ids = new ArrayList<Long>(texts.length());
+    var rows = new ArrayList<List<?>>(texts.length());
+    var paths = new ArrayList<String>(texts.length());
+    for (int i = 0; i < texts.length(); ++i) {
+      var message = texts.getString(i);
+      if (message.length() > MAX_MESSAGE_LENGTH) {
+        throw new IllegalArgumentException("message " + i + " too long");
+      }
+      var msgId = msgIds.nextId();
+      messages.add(message);
+      ids.add(msgId);
+      rows.add(List.of(spaceId, msgId, msgTime, author, message));
+      paths.add("/spaces/" + spaceId + "/messages/" + msgId);
+    }
+
+    var result = database.withTransaction(tx -> {
+      database.updateBatch(
+          "INSERT INTO messages(space_id, msg_id, msg_time," +
+              "author, msg_text) " +
+              "VALUES(?, ?, ?, ?, ?)",
+          rows);
+
+      var uris = capabilityController.createUris(request, paths, "rd",
+          Duration.ofMinutes(5));
+      var readOnlyUris = capabilityController.createUris(request, paths, "r",
+          Duration.ofDays(365));
+
+      var created = new JSONArray();
+      for (int i = 0; i < paths.size(); ++i) {
+        created.put(new JSONObject()
+            .put("uri", uris.get(i))
+            .put("read-only", readOnlyUris.get(i)));
+      }
+      return created;
+    });
+
+    for (int i = 0; i < ids.size(); ++i) {
+      recentMessages.append(spaceId, ids.get(i), msgTime);
+      messageIndex.add(spaceId, ids.get(i), msgTime, messages.get(i));
+      spaceStats.added(spaceId, author, msgTime);
+      spaceVersions.getUnchecked(spaceId).changed(ids.get(i));
+      publish(new Message(spaceId, ids.get(i), author, msgTime, messages.get(i)));
+      linkPreviews.enqueue(ids.get(i), msgTime, messages.get(i));
+    }
+    batchMessages.add(ids.size());
+    batchTimer.recordNanos(System.nanoTime() - start);
+    response.status(201);
+    return result;
+  }
+
+  public JSONArray findMessages(Request request, Response response)
+      throws IOException {
+    var accept = request.headers("Accept");
+    if (accept != null && accept.contains("text/event-stream")) {
+      streamMessages(request, response);
+      // The response is already committed, so this is not sent
+      return new JSONArray();
+    }
+
     var spaceId = Long.parseLong(request.params(":spaceId"));
+    // Answered before any query runs or capability is minted
+    var etag = listingETag(spaceId, request);
+    cacheWithETag(response, etag);
+    if (matches(request.headers("If-None-Match"), etag)) {
+      halt(304);
+    }
 
-    var messages = database.findAll(Long.class,
-        "SELECT msg_id FROM messages " +
-            "WHERE space_id = ? AND msg_time >= ?;",
-        spaceId, since);
+    var since = request.queryParams("since") != null
+        ? Instant.parse(request.queryParams("since"))
+        : Instant.now().minus(1, ChronoUnit.DAYS);
+    response.status(200);
+
+    // Searches page by time the same way as listing
+    var query = request.queryParams("q");
+    if (query != null) {
+      return toCapabilities(request, spaceId,
+          messageIndex.search(spaceId, query, since));
+    }
+
+    var messages = recentMessages.findSince(spaceId, since)
+        .orElseGet(() -> database.findAll(Long.class,
+            "SELECT msg_id FROM messages " +
+                "WHERE space_id = ? AND msg_time >= ?;",
+            spaceId, since));
+    if (messageLog != null) {
+      var ids = new LinkedHashSet<>(messages);
+      ids.addAll(messageLog.findSince(spaceId, since));
+      messages = new ArrayList<>(ids);
+    }
+    return toCapabilities(request, spaceId, messages);
+  }
 
+  private JSONArray toCapabilities(Request request, long spaceId, List<Long> messages) {
     var perms = request.<String>attribute("perms")
         .replace("w", "");
-    response.status(200);
     return new JSONArray(messages.stream()
         .map(msgId -> "/spaces/" + spaceId + "/messages/" + msgId)
         .map(path -> capabilityController.createUri(request, path, perms, Duration.ofMinutes(10)))
         .collect(Collectors.toList()));
   }
 
+  /**
+   * Pushes messages as they are posted. A client reconnecting with a
+   * Last-Event-ID header, or lastEventId parameter, is first sent anything
+   * it missed.
+   */
+  private void streamMessages(Request request, Response response)
+      throws IOException {
+    var spaceId = Long.parseLong(request.params(":spaceId"));
+    var lastEventId = request.headers("Last-Event-ID");
+    if (lastEventId == null) {
+      lastEventId = request.queryParams("lastEventId");
+    }
+    var lastSeen = MessageStream.parseEventId(lastEventId);
+    messageStream.subscribe(request.raw(), response.raw(), spaceId, lastSeen,
+        () -> missedMessages(spaceId, lastSeen));
+  }
+
+  // Returns up to one more than the stream queue holds, so that the stream
+  // can tell when the client has missed too much
+  private List<MessageStream.Event> missedMessages(long spaceId, long[] lastSeen) {
+    var after = Instant.ofEpochMilli(lastSeen[0]);
+    var messages = new ArrayList<>(database.findAll(Message.class,
+        "SELECT space_id, msg_id, author, msg_time, msg_text FROM messages " +
+            "WHERE space_id = ? AND (msg_time > ? OR (msg_time = ? AND msg_id > ?)) " +
+            "ORDER BY msg_time, msg_id LIMIT ?",
+        spaceId, after, after, lastSeen[1], STREAM_QUEUE_SIZE + 1));
+    if (messageLog != null) {
+      var ids = new HashSet<Long>();
+      messages.forEach(message -> ids.add(message.msgId));
+      for (var msgId : messageLog.findSince(spaceId, after)) {
+        messageLog.find(spaceId, msgId)
+            .filter(entry -> ids.add(entry.msgId))
+            .ifPresent(entry -> messages.add(new Message(spaceId, entry.msgId,
+                entry.author, entry.time, entry.text)));
+      }
+    }
+
+    var events = new ArrayList<MessageStream.Event>();
+    for (var message : messages) {
+      var event = new MessageStream.Event(message.msgId, message.time, message.toString());
+      if (event.isAfter(lastSeen)) {
+        events.add(event);
+      }
+    }
+    events.sort(Comparator.<MessageStream.Event>comparingLong(e -> e.time)
+        .thenComparingLong(e -> e.msgId));
+    return events.subList(0, Math.min(events.size(), STREAM_QUEUE_SIZE + 1));
+  }
+
+  private void publish(Message message) {
+    messageStream.publish(message.spaceId, new MessageStream.Event(
+        message.msgId, message.time, message.toString()));
+  }
+
   public JSONObject addMember(Request request, Response response) {
     var json = new JSONObject(request.body());
     var spaceId = Long.parseLong(request.params(":spaceId"));
@@ -161,29 +424,68 @@ public class SpaceController {
         .put("role", role);
   }
 
-  public JSONObject deleteMessage(Request request, Response response) {
+  /**
+   * Sets how many days messages in the space are kept before being
+   * archived, or zero to keep them forever.
+   */
+  public JSONObject setRetention(Request request, Response response) {
+    var json = new JSONObject(request.body());
     var spaceId = Long.parseLong(request.params(":spaceId"));
-    var msgId = Long.parseLong(request.params(":msgId"));
+    var days = json.getInt("days");
+    if (days < 0) {
+      throw new IllegalArgumentException("invalid retention period");
+    }
+
+    database.withVoidTransaction(tx -> {
+      if (database.update("UPDATE space_retention SET retention_days = ? " +
+          "WHERE space_id = ?", days, spaceId) == 0) {
+        database.updateUnique("INSERT INTO space_retention(space_id, retention_days) " +
+            "VALUES(?, ?)", spaceId, days);
+      }
+    });
 
-    database.updateUnique("DELETE FROM messages WHERE space_id = ? AND msg_id = ?", spaceId, msgId);
     response.status(200);
-    return new JSONObject();
+    return new JSONObject().put("days", days);
   }
 
-  private final HttpClient httpClient = HttpClient.newHttpClient();
-  private final URI linkPreviewService = URI.create("http://natter-link-preview-service:4567");
+  /**
+   * Message count, last activity and top posters for the space, from
+   * counters kept up to date as messages are posted and deleted.
+   */
+  public JSONObject readStats(Request request, Response response) {
+    var spaceId = Long.parseLong(request.params(":spaceId"));
+    return spaceStats.summary(spaceId);
+  }
 
-  private JSONObject fetchLinkPreview(String link) {
-    var url = linkPreviewService.resolve("/preview?url=" + URLEncoder.encode(link, StandardCharsets.UTF_8));
-    var request = HttpRequest.newBuilder(url).GET().build();
-    try {
-      var response = httpClient.send(request, BodyHandlers.ofString());
-      if (response.statusCode() == 200) {
-        return new JSONObject(response.body());
+  public JSONObject deleteMessage(Request request, Response response) {
+    var spaceId = Long.parseLong(request.params(":spaceId"));
+    var msgId = Long.parseLong(request.params(":msgId"));
+
+    if (messageLog != null) {
+      if (!messageLog.awaitApplied(msgId, Duration.ofSeconds(5))) {
+        response.header("Retry-After", "1");
+        halt(503, new JSONObject().put("error", "message not yet stored, try again").toString());
       }
-    } catch (Exception ignored) {
     }
-    return null;
+    // The author is looked up first so that the stats can be updated, but
+    // only counted as removed if this request is the one that deleted it
+    var author = database.findOptional(String.class,
+        "SELECT author FROM messages WHERE space_id = ? AND msg_id = ?", spaceId, msgId);
+    if (author.isPresent() && database.update(
+        "DELETE FROM messages WHERE space_id = ? AND msg_id = ?", spaceId, msgId) == 1) {
+      spaceStats.removed(spaceId, author.get());
+    } else {
+      author = database.findOptional(String.class,
+          "SELECT author FROM archived_messages WHERE space_id = ? AND msg_id = ?", spaceId, msgId);
+      database.updateUnique("DELETE FROM archived_messages WHERE space_id = ? AND msg_id = ?", spaceId, msgId);
+      spaceStats.removed(spaceId, author.orElseThrow());
+    }
+    database.update("DELETE FROM link_previews WHERE msg_id = ?", msgId);
+    recentMessages.remove(spaceId, msgId);
+    messageIndex.remove(spaceId, msgId);
+    spaceVersions.getUnchecked(spaceId).changed(msgId);
+    response.status(200);
+    return new JSONObject();
   }
 
   public static class Message {
@@ -220,25 +522,118 @@ public class SpaceController {
     var spaceId = Long.parseLong(request.params(":spaceId"));
     var msgId = Long.parseLong(request.params(":msgId"));
 
-    var message = database.findUnique(Message.class,
-        "SELECT space_id, msg_id, author, msg_time, msg_text " +
-            "FROM messages WHERE msg_id = ? AND space_id = ?",
-        msgId, spaceId);
-
-    var linkPattern = Pattern.compile("https?://\\S+");
-    var matcher = linkPattern.matcher(message.message);
-    int start = 0;
-    while (matcher.find(start)) {
-      var url = matcher.group();
-      System.out.println(url);
-      var preview = fetchLinkPreview(url);
-      if (preview != null) {
-        message.links.add(preview);
+    if (messageLog != null) {
+      var logged = messageLog.find(spaceId, msgId);
+      if (logged.isPresent()) {
+        var entry = logged.get();
+        response.status(200);
+        return new Message(spaceId, msgId, entry.author, entry.time, entry.text);
       }
-      start = matcher.end();
     }
 
+    // Messages past their space's retention period are only in the
+    // archive. One query finds the message wherever it is, so a
+    // conditional read costs that query and nothing more, and an
+    // unconditional one costs no extra query for the check.
+    var row = database.findUnique(rs -> Map.entry(rs.getString(6),
+        new Message(rs.getLong(1), rs.getLong(2), rs.getString(3),
+            rs.getTimestamp(4).toInstant(), rs.getString(5))),
+        "SELECT space_id, msg_id, author, msg_time, msg_text, 'live' " +
+            "FROM messages WHERE msg_id = ? AND space_id = ? " +
+            "UNION ALL " +
+            "SELECT space_id, msg_id, author, msg_time, msg_text, 'archived' " +
+            "FROM archived_messages WHERE msg_id = ? AND space_id = ?",
+        msgId, spaceId, msgId, spaceId);
+    var table = row.getKey();
+    var message = row.getValue();
+
+    // Messages are never edited, so a client only holds a tag for a
+    // message whose previews were final when it was read. The tag also
+    // says which table the message is in, and a deleted message gets no
+    // 304 at all.
+    var etag = messageETag(spaceId, msgId, table);
+    if (matches(request.headers("If-None-Match"), etag)) {
+      cacheWithETag(response, etag);
+      halt(304);
+    }
+
+    var links = message.links;
+    database.findAll(String.class,
+        "SELECT preview FROM link_previews " +
+            "WHERE msg_id = ? ORDER BY link_index",
+        msgId).forEach(preview -> links.add(new JSONObject(preview)));
+
+    if (linkPreviews.isSettled(msgId, message.time, message.message)) {
+      cacheWithETag(response, etag);
+    }
     response.status(200);
     return message;
   }
+
+  /**
+   * A weak tag for a listing, which changes whenever a message in the
+   * space is posted, deleted or archived through this replica, and at
+   * least every five minutes so that the capability URIs of a cached
+   * listing are still valid when it is reused.
+   * <p>
+   * No query is run, so changes made through other replicas, or directly
+   * in the database, are not seen until the space's version is replaced,
+   * which happens every minute. Until then a client revalidating a
+   * listing can be told that a stale copy is current. With a single
+   * replica, the only way messages are written, this cannot happen.
+   */
+  private String listingETag(long spaceId, Request request) {
+    var version = spaceVersions.getUnchecked(spaceId);
+    var params = Objects.hash(request.queryParams("since"), request.queryParams("q"),
+        request.<String>attribute("perms"));
+    return "W/\"" + Long.toHexString(version.nonce) + "." + version.latestMsgId
+        + "." + version.changes.get() + "." + Instant.now().getEpochSecond() / 300
+        + "." + Integer.toHexString(params) + "\"";
+  }
+
+  private static String messageETag(long spaceId, long msgId, String table) {
+    return "\"" + spaceId + "." + msgId + "." + table + "\"";
+  }
+
+  private static void cacheWithETag(Response response, String etag) {
+    response.raw().setHeader("ETag", etag);
+    response.raw().setHeader("Cache-Control", "private, no-cache");
+  }
+
+  /** Weak comparison, as If-None-Match requires. */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    if (ifNoneMatch.trim().equals("*")) {
+      return true;
+    }
+    var opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+    for (var candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals(opaque)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Changes to a space seen by this replica. Entries are replaced every
+   * minute with a fresh nonce, which bounds how long changes made through
+   * other replicas can go unnoticed.
+   */
+  private static class SpaceVersion {
+    final long nonce = ThreadLocalRandom.current().nextLong();
+    final AtomicLong changes = new AtomicLong();
+    volatile long latestMsgId;
+
+    void changed(long msgId) {
+      latestMsgId = Math.max(latestMsgId, msgId);
+      changes.incrementAndGet();
+    }
+  }
 }
\ No newline at end of file
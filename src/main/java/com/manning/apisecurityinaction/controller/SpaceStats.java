@@ -0,0 +1,131 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.dalesbred.Database;
+import org.json.*;
+import org.slf4j.*;
+
+/**
+ * Per-space message counts, last activity and per-author counts, kept in
+ * memory as posts and deletes happen so that reading them costs nothing
+ * like aggregating over messages. At startup they are counted from the
+ * messages and archived_messages tables in a single grouped query, so they
+ * are exact whenever the process starts, however it last stopped. Archived
+ * messages still count until they are deleted. Like the message index,
+ * activity through other replicas is only seen after a restart.
+ */
+class SpaceStats {
+  private static final Logger logger = LoggerFactory.getLogger(SpaceStats.class);
+
+  private static final int TOP_POSTERS = 10;
+
+  private final Map<Long, Space> spaces = new ConcurrentHashMap<>();
+
+  /**
+   * Messages in the write-ahead log that may not yet be in the messages
+   * table are passed as unapplied, and must have been read before this is
+   * constructed so that each is counted once.
+   */
+  SpaceStats(Database database, List<MessageLog.Entry> unapplied) {
+    var start = System.nanoTime();
+    database.executeQuery(rs -> {
+      while (rs.next()) {
+        var space = space(rs.getLong(1));
+        var count = rs.getLong(3);
+        var lastPost = rs.getTimestamp(4).toInstant().toEpochMilli();
+        space.messages.add(count);
+        space.lastActivity.accumulate(lastPost);
+        space.poster(rs.getString(2)).add(count);
+      }
+      return null;
+    }, "SELECT space_id, author, COUNT(*), MAX(msg_time) FROM (" +
+        "SELECT space_id, author, msg_time FROM messages " +
+        "UNION ALL " +
+        "SELECT space_id, author, msg_time FROM archived_messages) " +
+        "GROUP BY space_id, author");
+
+    // Entries already applied, but not yet recorded as such, were counted
+    // above. Ids of unapplied entries are recent, so the range is small.
+    var stored = new HashSet<Long>();
+    if (!unapplied.isEmpty()) {
+      var from = unapplied.stream().mapToLong(entry -> entry.msgId).min().getAsLong();
+      var to = unapplied.stream().mapToLong(entry -> entry.msgId).max().getAsLong();
+      stored.addAll(database.findAll(Long.class,
+          "SELECT msg_id FROM messages WHERE msg_id BETWEEN ? AND ? " +
+              "UNION ALL " +
+              "SELECT msg_id FROM archived_messages WHERE msg_id BETWEEN ? AND ?",
+          from, to, from, to));
+    }
+    var replayed = 0;
+    for (var entry : unapplied) {
+      if (stored.add(entry.msgId)) {
+        ++replayed;
+        added(entry.spaceId, entry.author, entry.time);
+      }
+    }
+    logger.info("Counted stats for {} spaces, plus {} logged messages, in {}ms",
+        spaces.size(), replayed, (System.nanoTime() - start) / 1_000_000);
+  }
+
+  void added(long spaceId, String author, Instant time) {
+    var space = space(spaceId);
+    space.messages.increment();
+    space.lastActivity.accumulate(time.toEpochMilli());
+    space.poster(author).increment();
+  }
+
+  void removed(long spaceId, String author) {
+    var space = space(spaceId);
+    space.messages.decrement();
+    space.poster(author).decrement();
+  }
+
+  JSONObject summary(long spaceId) {
+    var space = spaces.get(spaceId);
+    if (space == null) {
+      return new JSONObject()
+          .put("message-count", 0)
+          .put("last-activity", JSONObject.NULL)
+          .put("top-posters", new JSONArray());
+    }
+    return space.summary();
+  }
+
+  private Space space(long spaceId) {
+    return spaces.computeIfAbsent(spaceId, id -> new Space());
+  }
+
+  private static class Space {
+    private final LongAdder messages = new LongAdder();
+    private final LongAccumulator lastActivity = new LongAccumulator(Math::max, Long.MIN_VALUE);
+    private final Map<String, LongAdder> posters = new ConcurrentHashMap<>();
+
+    LongAdder poster(String author) {
+      return posters.computeIfAbsent(author, a -> new LongAdder());
+    }
+
+    JSONObject summary() {
+      var top = new JSONArray();
+      posters.entrySet().stream()
+          .map(entry -> Map.entry(entry.getKey(), entry.getValue().sum()))
+          .filter(entry -> entry.getValue() > 0)
+          .sorted(Map.Entry.<String, Long>comparingByValue().reversed()
+              .thenComparing(Map.Entry.comparingByKey()))
+          .limit(TOP_POSTERS)
+          .forEach(entry -> top.put(new JSONObject()
+              .put("author", entry.getKey())
+              .put("message-count", entry.getValue())));
+
+      var last = lastActivity.get();
+      return new JSONObject()
+          .put("message-count", messages.sum())
+          .put("last-activity", last == Long.MIN_VALUE
+              ? JSONObject.NULL : Instant.ofEpochMilli(last).toString())
+          .put("top-posters", top);
+    }
+  }
+}
@@ -5,6 +5,7 @@ import java.time.temporal.ChronoUnit;
 import java.util.*;
 import org.json.JSONObject;
 
+import com.manning.apisecurityinaction.token.ScopeSet;
 import com.manning.apisecurityinaction.token.SecureTokenStore;
 import com.manning.apisecurityinaction.token.TokenStore;
 import spark.*;
@@ -18,7 +19,7 @@ public class TokenController {
   private final TokenStore tokenStore;
 
   private static final String DEFAULT_SCOPES = "create_space post_message read_message list_messages "
-      + "delete_message add_member";
+      + "delete_message add_member set_retention";
 
   public TokenController(SecureTokenStore tokenStore) {
     this.tokenStore = tokenStore;
@@ -49,6 +50,7 @@ public class TokenController {
       if (Instant.now().isBefore(token.expiry)) {
         request.attribute("subject", token.username);
         token.attributes.forEach(request::attribute);
+        request.attribute("scopes", token.scopes());
       } else {
         response.header("WWW-Authenticate",
             "Bearer error=\"invalid_token\"," +
@@ -72,14 +74,14 @@ public class TokenController {
   }
 
   public Filter requireScope(String method, String requiredScope) {
+    var scopeIndex = ScopeSet.register(requiredScope);
     return (request, response) -> {
       if (!method.equalsIgnoreCase(request.requestMethod()))
         return;
-      var tokenScope = request.<String>attribute("scope");
-      if (tokenScope == null)
+      var tokenScopes = request.<ScopeSet>attribute("scopes");
+      if (tokenScopes == null)
         return;
-      if (!Set.of(tokenScope.split(" "))
-          .contains(requiredScope)) {
+      if (!tokenScopes.contains(scopeIndex)) {
         response.header("WWW-Authenticate",
             "Bearer error=\"insufficient_scope\"," +
                 "scope=\"" + requiredScope + "\"");
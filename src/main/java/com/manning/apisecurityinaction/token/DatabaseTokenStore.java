@@ -7,7 +7,7 @@ import spark.Request;
 
 import java.security.SecureRandom;
 import java.sql.*;
-import java.util.Optional;
+import java.util.*;
 import java.util.concurrent.*;
 
 import static com.manning.apisecurityinaction.token.CookieTokenStore.sha256;
@@ -47,6 +47,24 @@ public class DatabaseTokenStore implements SecureTokenStore {
         return tokenId;
     }
 
+    @Override
+    public List<String> createAll(Request request, List<Token> tokens) {
+        var tokenIds = new ArrayList<String>(tokens.size());
+        var rows = new ArrayList<List<?>>(tokens.size());
+        for (var token : tokens) {
+            var tokenId = randomId();
+            tokenIds.add(tokenId);
+            rows.add(List.of(hash(tokenId), token.username, token.expiry,
+                    new JSONObject(token.attributes).toString()));
+        }
+
+        database.updateBatch("INSERT INTO " +
+            "tokens(token_id, user_id, expiry, attributes) " +
+            "VALUES(?, ?, ?, ?)", rows);
+
+        return tokenIds;
+    }
+
     @Override
     public Optional<Token> read(Request request, String tokenId) {
         return database.findOptional(this::readToken,
@@ -3,7 +3,7 @@ package com.manning.apisecurityinaction.token;
 import java.security.Key;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.Optional;
+import java.util.*;
 
 import com.github.nitram509.jmacaroons.*;
 import com.github.nitram509.jmacaroons.verifier.*;
@@ -26,6 +26,16 @@ public class MacaroonTokenStore implements SecureTokenStore {
         return macaroon.serialize();
     }
 
+    @Override
+    public List<String> createAll(Request request, List<Token> tokens) {
+        var tokenIds = new ArrayList<String>(tokens.size());
+        for (var identifier : delegate.createAll(request, tokens)) {
+            tokenIds.add(MacaroonsBuilder.create("",
+                    macKey.getEncoded(), identifier).serialize());
+        }
+        return tokenIds;
+    }
+
     public static SecureTokenStore wrap(
             ConfidentialTokenStore tokenStore, Key macKey) {
         return new MacaroonTokenStore(tokenStore, macKey);
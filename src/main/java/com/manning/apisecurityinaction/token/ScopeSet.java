@@ -0,0 +1,52 @@
+package com.manning.apisecurityinaction.token;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable set of OAuth scopes, stored as bits indexed by a registry
+ * of known scope names. Scopes are registered by the filters that check
+ * them, when the routes are set up, so scopes that nothing checks are
+ * simply left out when parsing.
+ */
+public final class ScopeSet {
+  private static final Map<String, Integer> registry = new ConcurrentHashMap<>();
+
+  private final long[] bits;
+
+  private ScopeSet(long[] bits) {
+    this.bits = bits;
+  }
+
+  /**
+   * Returns the bit index for a scope, registering it if it is new. Sets
+   * parsed before a scope is registered never contain it.
+   */
+  public static synchronized int register(String scope) {
+    var index = registry.get(scope);
+    if (index == null) {
+      index = registry.size();
+      registry.put(scope, index);
+    }
+    return index;
+  }
+
+  public static ScopeSet parse(String scope) {
+    var bits = new long[0];
+    for (var name : scope.split(" ")) {
+      var index = registry.get(name);
+      if (index == null) {
+        continue;
+      }
+      if (index / 64 >= bits.length) {
+        bits = Arrays.copyOf(bits, index / 64 + 1);
+      }
+      bits[index / 64] |= 1L << index;
+    }
+    return new ScopeSet(bits);
+  }
+
+  public boolean contains(int index) {
+    return index / 64 < bits.length && (bits[index / 64] & (1L << index)) != 0;
+  }
+}
@@ -8,6 +8,18 @@ import spark.Request;
 public interface TokenStore {
   String create(Request request, Token token);
 
+  /**
+   * Creates several tokens at once, returning their ids in the same order.
+   * Stores that can do better than one create() per token override this.
+   */
+  default List<String> createAll(Request request, List<Token> tokens) {
+    var tokenIds = new ArrayList<String>(tokens.size());
+    for (var token : tokens) {
+      tokenIds.add(create(request, token));
+    }
+    return tokenIds;
+  }
+
   Optional<Token> read(Request request, String tokenId);
 
   void revoke(Request request, String tokenId);
@@ -22,5 +34,24 @@ public interface TokenStore {
       this.username = username;
       this.attributes = new ConcurrentHashMap<>();
     }
+
+    private volatile ScopeSet scopes;
+
+    /**
+     * The parsed "scope" attribute, or null if there is none. It is
+     * parsed on first use and kept with the token, so stores that cache
+     * tokens cache it too.
+     */
+    public ScopeSet scopes() {
+      var result = scopes;
+      if (result == null) {
+        var scope = attributes.get("scope");
+        if (scope == null) {
+          return null;
+        }
+        scopes = result = ScopeSet.parse(scope);
+      }
+      return result;
+    }
   }
 }
\ No newline at end of file
@@ -9,14 +9,14 @@ CREATE TABLE group_members(
 CREATE INDEX group_member_user_idx ON group_members(user_id);
 
 CREATE TABLE spaces(
-    space_id INT PRIMARY KEY,
+    space_id BIGINT PRIMARY KEY,
     name VARCHAR(255) NOT NULL,
     owner VARCHAR(30) NOT NULL
 );
 CREATE SEQUENCE space_id_seq;
 CREATE TABLE messages(
-    space_id INT NOT NULL REFERENCES spaces(space_id),
-    msg_id INT PRIMARY KEY,
+    space_id BIGINT NOT NULL REFERENCES spaces(space_id),
+    msg_id BIGINT PRIMARY KEY,
     author VARCHAR(30) NOT NULL,
     msg_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
     msg_text VARCHAR(1024) NOT NULL
@@ -25,8 +25,28 @@ CREATE SEQUENCE msg_id_seq;
 CREATE INDEX msg_timestamp_idx ON messages(msg_time);
 CREATE UNIQUE INDEX space_name_idx ON spaces(name);
 
+CREATE TABLE archived_messages(
+    space_id BIGINT NOT NULL REFERENCES spaces(space_id),
+    msg_id BIGINT PRIMARY KEY,
+    author VARCHAR(30) NOT NULL,
+    msg_time TIMESTAMP NOT NULL,
+    msg_text VARCHAR(1024) NOT NULL
+);
+CREATE TABLE space_retention(
+    space_id BIGINT PRIMARY KEY REFERENCES spaces(space_id),
+    retention_days INT NOT NULL
+);
+
+CREATE TABLE link_previews(
+    msg_id BIGINT NOT NULL,
+    link_index INT NOT NULL,
+    url VARCHAR(1024) NOT NULL,
+    preview VARCHAR(4096) NOT NULL,
+    PRIMARY KEY (msg_id, link_index)
+);
+
 CREATE TABLE audit_log(
-    audit_id INT NULL,
+    audit_id BIGINT NULL,
     method VARCHAR(10) NOT NULL,
     path VARCHAR(100) NOT NULL,
     user_id VARCHAR(30) NULL,
@@ -34,6 +54,20 @@ CREATE TABLE audit_log(
     audit_time TIMESTAMP NOT NULL
 );
 CREATE SEQUENCE audit_id_seq;
+CREATE INDEX audit_time_idx ON audit_log(audit_time, audit_id, status);
+CREATE INDEX audit_user_time_idx ON audit_log(user_id, audit_time);
+
+CREATE TABLE request_rollups(
+    minute TIMESTAMP NOT NULL,
+    method VARCHAR(10) NOT NULL,
+    route VARCHAR(100) NOT NULL,
+    status INT NOT NULL,
+    request_count BIGINT NOT NULL,
+    total_nanos BIGINT NOT NULL,
+    max_nanos BIGINT NOT NULL,
+    histogram VARCHAR(1024) NOT NULL
+);
+CREATE INDEX request_rollups_minute_idx ON request_rollups(minute);
 
 CREATE TABLE role_permissions(
     role_id VARCHAR(30) NOT NULL PRIMARY KEY,
@@ -46,14 +80,14 @@ INSERT INTO role_permissions(role_id, perms)
            ('observer', 'r');
 
 CREATE TABLE user_roles(
-    space_id INT NOT NULL REFERENCES spaces(space_id),
+    space_id BIGINT NOT NULL REFERENCES spaces(space_id),
     user_id VARCHAR(30) NOT NULL REFERENCES users(user_id),
     role_id VARCHAR(30) NOT NULL REFERENCES role_permissions(role_id),
     PRIMARY KEY (space_id, user_id)
 );
 
 CREATE TABLE permissions(
-    space_id INT NOT NULL REFERENCES spaces(space_id),
+    space_id BIGINT NOT NULL REFERENCES spaces(space_id),
     user_or_group_id VARCHAR(30) NOT NULL,
     perms VARCHAR(3) NOT NULL);
 
@@ -68,9 +102,13 @@ CREATE INDEX expired_token_idx ON tokens(expiry);
 CREATE USER natter_api_user PASSWORD 'password';
 GRANT SELECT, INSERT ON spaces, messages TO natter_api_user;
 GRANT DELETE ON messages TO natter_api_user;
+GRANT SELECT, INSERT, DELETE ON archived_messages TO natter_api_user;
+GRANT SELECT, INSERT, UPDATE ON space_retention TO natter_api_user;
+GRANT SELECT, INSERT, DELETE ON link_previews TO natter_api_user;
 
 GRANT SELECT, INSERT ON users TO natter_api_user;
 GRANT SELECT, INSERT ON audit_log TO natter_api_user;
+GRANT SELECT, INSERT ON request_rollups TO natter_api_user;
 GRANT SELECT, INSERT ON permissions TO natter_api_user;
 GRANT SELECT, INSERT, DELETE ON tokens TO natter_api_user; 
 GRANT SELECT ON role_permissions TO natter_api_user;
@@ -0,0 +1,182 @@
+package com.manning.apisecurityinaction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.manning.apisecurityinaction.controller.MetricsController;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class HeadFetcherTest {
+    private static final String HEAD =
+            "<html><head><title>Example</title>" +
+            "<meta property=\"og:description\" content=\"desc\"></HEAD>";
+
+    private final MetricsController metrics = new MetricsController();
+    private final HostCircuitBreaker circuitBreaker =
+            new HostCircuitBreaker(5, Duration.ofSeconds(2), Duration.ofMinutes(1));
+    private final HeadFetcher fetcher = new HeadFetcher(
+            new DnsCache(Duration.ofSeconds(30), address -> false, metrics),
+            circuitBreaker, metrics);
+
+    @Test
+    public void shouldStopReadingAtEndOfHead() throws Exception {
+        var bodyBytesWritten = new AtomicLong();
+        var chunk = "<p>body</p>".repeat(1000).getBytes(UTF_8);
+        try (var server = new ServerSocket(0, 1, InetAddress.getByName("localhost"))) {
+            // A plain socket with a small fixed send buffer, so that what was
+            // written is close to what the client read; the kernel would
+            // otherwise grow the buffer to several MB
+            var serverThread = new Thread(() -> {
+                try (var socket = server.accept()) {
+                    socket.setSendBufferSize(64 * 1024);
+                    // Answer only once the whole request has arrived
+                    var request = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), UTF_8));
+                    while (!request.readLine().isEmpty()) {
+                    }
+                    var out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\n" +
+                            "Content-Type: text/html; charset=utf-8\r\n" +
+                            "Content-Length: " + (HEAD.length() + 1000L * chunk.length) + "\r\n" +
+                            "\r\n" + HEAD).getBytes(UTF_8));
+                    out.flush();
+                    for (int i = 0; i < 1000; ++i) {
+                        out.write(chunk);
+                        bodyBytesWritten.addAndGet(chunk.length);
+                    }
+                } catch (IOException expected) {
+                    // Client hung up once it had the head
+                }
+            });
+            serverThread.start();
+
+            var uri = URI.create("http://localhost:" + server.getLocalPort() + "/");
+            var res = fetcher.fetch(uri);
+            assertEquals(HEAD, res.head);
+            assertNull(res.location);
+            serverThread.join(5000);
+            assertFalse("client kept the connection open", serverThread.isAlive());
+            assertTrue("wrote " + bodyBytesWritten.get() + " body bytes",
+                    bodyBytesWritten.get() < 1_000_000);
+            assertEquals(1L, metrics.counter("preview.fetch.bodies_aborted").sum());
+        }
+    }
+
+    @Test
+    public void shouldReuseConnectionWhenBodyIsShort() throws Exception {
+        var page = (HEAD + "<body>" + "<p>short</p>".repeat(100) + "</body></html>")
+                .getBytes(UTF_8);
+        var server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "text/html");
+            exchange.sendResponseHeaders(200, page.length);
+            exchange.getResponseBody().write(page);
+            exchange.close();
+        });
+        server.start();
+        try {
+            var uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/");
+            for (int i = 0; i < 3; ++i) {
+                assertEquals(HEAD, fetcher.fetch(uri).head);
+            }
+            assertEquals(3L, metrics.counter("preview.fetch.requests").sum());
+            assertEquals(1L, metrics.counter("preview.fetch.connections_opened").sum());
+            assertEquals(0L, metrics.counter("preview.fetch.bodies_aborted").sum());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void shouldDrainUpToLimit() throws Exception {
+        assertTrue(HeadFetcher.drain(new ByteArrayInputStream(new byte[100]), 100));
+        assertTrue(HeadFetcher.drain(new ByteArrayInputStream(new byte[0]), 100));
+        assertFalse(HeadFetcher.drain(new ByteArrayInputStream(new byte[101]), 100));
+        assertFalse(HeadFetcher.drain(new ByteArrayInputStream(new byte[100_000]), 100));
+    }
+
+    @Test
+    public void shouldReturnRedirectLocationWithoutReadingBody() throws Exception {
+        var server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().set("Location", "/elsewhere");
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            var uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/");
+            var res = fetcher.fetch(uri);
+            assertEquals("/elsewhere", res.location);
+            assertNull(res.head);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void shouldRefuseToConnectToBlockedAddresses() throws Exception {
+        var blockingFetcher = new HeadFetcher(
+                new DnsCache(Duration.ofSeconds(30), InetAddress::isLoopbackAddress, metrics),
+                circuitBreaker, metrics);
+        var requests = new AtomicLong();
+        var server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            var uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/");
+            blockingFetcher.fetch(uri);
+            fail("expected fetch to be refused");
+        } catch (IOException expected) {
+            assertEquals(0L, requests.get());
+            assertEquals(1L, metrics.readMetrics(null, null).getLong("dns.cache.misses"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void shouldCapBytesReadWhenHeadNeverEnds() throws Exception {
+        var bytesRead = new AtomicLong();
+        var page = ("<html><head><title>Big</title>" +
+                "<meta name=x content=y>".repeat(100_000)).getBytes(UTF_8);
+        var in = new FilterInputStream(new ByteArrayInputStream(page)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                var read = super.read(b, off, len);
+                bytesRead.addAndGet(Math.max(read, 0));
+                return read;
+            }
+        };
+
+        var head = HeadFetcher.readHead(in, UTF_8, 1024);
+        assertEquals(1024, head.length());
+        assertEquals(1024, bytesRead.get());
+    }
+
+    @Test
+    public void shouldOpenCircuitAfterRepeatedSlowCalls() throws Exception {
+        var breaker = new HostCircuitBreaker(2, Duration.ofMillis(100), Duration.ofMinutes(1));
+        breaker.recordSuccess("slow.example.com", Duration.ofSeconds(1).toNanos());
+        breaker.checkAllowed("slow.example.com");
+        breaker.recordSuccess("slow.example.com", Duration.ofSeconds(1).toNanos());
+        try {
+            breaker.checkAllowed("slow.example.com");
+            fail("expected circuit to be open");
+        } catch (HostCircuitBreaker.CircuitOpenException expected) {
+        }
+        breaker.checkAllowed("fast.example.com");
+    }
+}
@@ -0,0 +1,54 @@
+package com.manning.apisecurityinaction;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import spark.Request;
+
+public class ResponseCompressionTest {
+
+    @Test
+    public void shouldAcceptGzip() {
+        assertTrue(ResponseCompression.acceptsGzip(request("gzip")));
+        assertTrue(ResponseCompression.acceptsGzip(request("deflate, GZIP")));
+        assertTrue(ResponseCompression.acceptsGzip(request("br;q=1.0, gzip;q=0.5")));
+        assertTrue(ResponseCompression.acceptsGzip(request("gzip; q=0.001")));
+    }
+
+    @Test
+    public void shouldAcceptWildcard() {
+        assertTrue(ResponseCompression.acceptsGzip(request("*")));
+        assertTrue(ResponseCompression.acceptsGzip(request("br, *;q=0.1")));
+    }
+
+    @Test
+    public void shouldRejectZeroQuality() {
+        assertFalse(ResponseCompression.acceptsGzip(request("gzip;q=0")));
+        assertFalse(ResponseCompression.acceptsGzip(request("gzip; q=0.000")));
+        assertFalse(ResponseCompression.acceptsGzip(request("br, *;q=0")));
+    }
+
+    @Test
+    public void shouldRejectMalformedQuality() {
+        assertFalse(ResponseCompression.acceptsGzip(request("gzip;q=high")));
+        assertFalse(ResponseCompression.acceptsGzip(request("gzip;q=")));
+    }
+
+    @Test
+    public void shouldRejectOtherOrMissingEncodings() {
+        assertFalse(ResponseCompression.acceptsGzip(request(null)));
+        assertFalse(ResponseCompression.acceptsGzip(request("")));
+        assertFalse(ResponseCompression.acceptsGzip(request("identity, br")));
+        assertFalse(ResponseCompression.acceptsGzip(request("x-gzip")));
+    }
+
+    private static Request request(String acceptEncoding) {
+        return new Request() {
+            @Override
+            public String headers(String header) {
+                return "Accept-Encoding".equalsIgnoreCase(header) ? acceptEncoding : null;
+            }
+        };
+    }
+}
@@ -0,0 +1,37 @@
+package com.manning.apisecurityinaction;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RoutePipelinesTest {
+
+    @Test
+    public void shouldMatchIdenticalPaths() {
+        assertTrue(RoutePipelines.matches("/spaces", "/spaces"));
+        assertFalse(RoutePipelines.matches("/spaces", "/sessions"));
+        assertFalse(RoutePipelines.matches("/spaces", "/spaces/:spaceId"));
+        assertFalse(RoutePipelines.matches("/spaces/:spaceId", "/spaces"));
+    }
+
+    @Test
+    public void shouldTreatParamsAndStarsAsOneSegment() {
+        assertTrue(RoutePipelines.matches("/spaces/:spaceId/messages",
+                "/spaces/:spaceId/messages"));
+        assertTrue(RoutePipelines.matches("/spaces/*/messages", "/spaces/:spaceId/messages"));
+        assertTrue(RoutePipelines.matches("/spaces/:id/messages", "/spaces/:spaceId/messages"));
+        assertFalse(RoutePipelines.matches("/spaces/*/messages",
+                "/spaces/:spaceId/members"));
+    }
+
+    @Test
+    public void shouldMatchRestOfPathWithTrailingStar() {
+        assertTrue(RoutePipelines.matches("/spaces/:spaceId/messages/*",
+                "/spaces/:spaceId/messages/:msgId"));
+        assertTrue(RoutePipelines.matches("/spaces/:spaceId/messages/*",
+                "/spaces/:spaceId/messages/batch"));
+        assertFalse(RoutePipelines.matches("/spaces/:spaceId/messages/*",
+                "/spaces/:spaceId/messages"));
+        assertTrue(RoutePipelines.matches("/*", "/spaces/:spaceId/messages"));
+    }
+}
@@ -0,0 +1,165 @@
+package com.manning.apisecurityinaction.controller;
+
+import java.io.IOException;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.kie.api.KieBase;
+import org.kie.api.KieServices;
+import org.kie.api.io.ResourceType;
+import org.kie.api.runtime.KieContainer;
+import org.kie.internal.utils.KieHelper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.manning.apisecurityinaction.controller.ABACAccessController.*;
+
+/**
+ * Per-decision latency of the ABAC engines. Run with the GC profiler to
+ * compare allocation too:
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *       -Dexec.mainClass=com.manning.apisecurityinaction.controller.AbacBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AbacBenchmark {
+
+    /** The rules as they were written against map facts. */
+    private static final String MAP_RULES = String.join("\n",
+            "package com.manning.apisecurityinaction.rules.maps;",
+            "dialect \"java\"",
+            "import com.manning.apisecurityinaction.controller.AbacBenchmark.*;",
+            "import com.manning.apisecurityinaction.controller.ABACAccessController.Decision;",
+            "global Decision decision;",
+            "rule \"deny moderation outside office hours\"",
+            "when",
+            "    MapAction( this[\"method\"] == \"DELETE\" )",
+            "    MapEnvironment( this[\"timeOfDay\"].hour < 9",
+            "        || this[\"timeOfDay\"].hour > 17 )",
+            "then",
+            "    decision.deny();",
+            "end");
+
+    @Param({"GET", "DELETE"})
+    public String method;
+
+    private KieBase mapRules;
+    private KieContainer kieContainer;
+    private DroolsAccessController drools;
+    private PolicyAccessController policy;
+
+    private Subject subject;
+    private Resource resource;
+    private Action action;
+    private Environment env;
+
+    @Setup
+    public void setup() throws IOException {
+        mapRules = new KieHelper().addContent(MAP_RULES, ResourceType.DRL).build();
+        kieContainer = KieServices.get().getKieClasspathContainer();
+        drools = new DroolsAccessController(new MetricsController());
+        policy = new PolicyAccessController(new MetricsController());
+
+        subject = new Subject("demo", List.of("moderators"));
+        resource = new Resource("/spaces/1/messages/2", "1");
+        action = new Action(method);
+        env = new Environment(LocalTime.of(23, 0), "127.0.0.1");
+    }
+
+    /**
+     * What every decision used to cost: attributes copied into maps, then
+     * into map facts, and a fresh session per request.
+     */
+    @Benchmark
+    public boolean droolsMapFacts() {
+        var subjectAttrs = new HashMap<String, Object>();
+        subjectAttrs.put("user", subject.getUser());
+        subjectAttrs.put("groups", subject.getGroups());
+
+        var resourceAttrs = new HashMap<String, Object>();
+        resourceAttrs.put("path", resource.getPath());
+        resourceAttrs.put("space", resource.getSpace());
+
+        var actionAttrs = new HashMap<String, Object>();
+        actionAttrs.put("method", action.getMethod());
+
+        var envAttrs = new HashMap<String, Object>();
+        envAttrs.put("timeOfDay", env.getTimeOfDay());
+        envAttrs.put("ip", env.getIp());
+
+        var session = mapRules.newKieSession();
+        try {
+            var decision = new Decision();
+            session.setGlobal("decision", decision);
+            session.insert(new MapSubject(subjectAttrs));
+            session.insert(new MapResource(resourceAttrs));
+            session.insert(new MapAction(actionAttrs));
+            session.insert(new MapEnvironment(envAttrs));
+            session.fireAllRules();
+            return decision.isPermitted();
+        } finally {
+            session.dispose();
+        }
+    }
+
+    /** Typed facts, but still a fresh session per request. */
+    @Benchmark
+    public boolean droolsNewSession() {
+        var session = kieContainer.newKieSession();
+        try {
+            var decision = new Decision();
+            session.setGlobal("decision", decision);
+            session.insert(subject);
+            session.insert(resource);
+            session.insert(action);
+            session.insert(env);
+            session.fireAllRules();
+            return decision.isPermitted();
+        } finally {
+            session.dispose();
+        }
+    }
+
+    @Benchmark
+    public boolean droolsPooledSession() {
+        return drools.checkPermitted(subject, resource, action, env);
+    }
+
+    @Benchmark
+    public boolean compiledPolicy() {
+        return policy.checkPermitted(subject, resource, action, env);
+    }
+
+    public static class MapSubject extends HashMap<String, Object> {
+        MapSubject(Map<String, Object> m) { super(m); }
+    }
+
+    public static class MapResource extends HashMap<String, Object> {
+        MapResource(Map<String, Object> m) { super(m); }
+    }
+
+    public static class MapAction extends HashMap<String, Object> {
+        MapAction(Map<String, Object> m) { super(m); }
+    }
+
+    public static class MapEnvironment extends HashMap<String, Object> {
+        MapEnvironment(Map<String, Object> m) { super(m); }
+    }
+
+        public static void main(String... args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AbacBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,97 @@
+package com.manning.apisecurityinaction.controller;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.BooleanSupplier;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import com.manning.apisecurityinaction.controller.AuditWriter.OverflowPolicy;
+
+public class AuditWriterTest {
+    private static final Instant TIME = Instant.parse("2020-01-01T12:00:00Z");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Database database = Database.forDataSource(JdbcConnectionPool.create(
+            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "test", "test"));
+    private final MetricsController metrics = new MetricsController();
+
+    public AuditWriterTest() {
+        database.update("CREATE TABLE audit_log(audit_id BIGINT NULL, " +
+                "method VARCHAR(10) NOT NULL, path VARCHAR(100) NOT NULL, " +
+                "user_id VARCHAR(30) NULL, status INT NULL, audit_time TIMESTAMP NOT NULL)");
+        database.update("CREATE SEQUENCE audit_id_seq");
+    }
+
+    @Test
+    public void shouldSpillWhileDatabaseDownAndLoadOnceBack() throws Exception {
+        var dir = folder.getRoot().toPath();
+        database.update("ALTER TABLE audit_log RENAME TO audit_log_down");
+        var writer = new AuditWriter(database, metrics, 100, OverflowPolicy.SPILL, dir);
+        for (long id = 1; id <= 5; ++id) {
+            writer.write(event(id));
+        }
+        var spilled = metrics.counter("audit.spilled");
+        await("events spilled", () -> spilled.sum() == 5);
+
+        // Failed loads must back off and keep the file, not spill it again
+        Thread.sleep(1500);
+        assertEquals(5, spilled.sum());
+        assertTrue(Files.exists(dir.resolve("audit-spill.jsonl.loading")));
+
+        database.update("ALTER TABLE audit_log_down RENAME TO audit_log");
+        await("spilled events loaded", () -> count() == 5);
+        await("loading file deleted",
+                () -> !Files.exists(dir.resolve("audit-spill.jsonl.loading")));
+        assertFalse(Files.exists(dir.resolve("audit-spill.jsonl")));
+        assertEquals(5, count());
+        assertEquals(5, spilled.sum());
+    }
+
+    @Test
+    public void shouldSetAsideTornSpilledEvents() throws Exception {
+        var dir = folder.getRoot().toPath();
+        var torn = event(2).toJson().toString();
+        torn = torn.substring(0, torn.length() / 2);
+        Files.write(dir.resolve("audit-spill.jsonl"), List.of(
+                event(1).toJson().toString(), torn, event(3).toJson().toString()), UTF_8);
+
+        new AuditWriter(database, metrics, 100, OverflowPolicy.SPILL, dir);
+        await("spilled events loaded", () -> count() == 2);
+        assertEquals(List.of(torn),
+                Files.readAllLines(dir.resolve("audit-spill.jsonl.rejected"), UTF_8));
+        assertEquals(1, metrics.counter("audit.spill_rejected").sum());
+        assertEquals(List.of(1L, 3L), database.executeQuery(rs -> {
+            var ids = new ArrayList<Long>();
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+            }
+            return ids;
+        }, "SELECT audit_id FROM audit_log ORDER BY audit_id"));
+    }
+
+    private static AuditEvent event(long auditId) {
+        return new AuditEvent(auditId, "GET", "/spaces/1", "demo", 200, TIME);
+    }
+
+    private int count() {
+        return database.findUniqueInt("SELECT COUNT(*) FROM audit_log");
+    }
+
+    private static void await(String what, BooleanSupplier condition)
+            throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); ++i) {
+            Thread.sleep(100);
+        }
+        assertTrue(what, condition.getAsBoolean());
+    }
+}
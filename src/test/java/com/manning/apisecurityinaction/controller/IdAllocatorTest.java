@@ -0,0 +1,69 @@
+package com.manning.apisecurityinaction.controller;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.Test;
+
+public class IdAllocatorTest {
+    private final Database database = Database.forDataSource(JdbcConnectionPool.create(
+            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "test", "test"));
+
+    public IdAllocatorTest() {
+        database.update("CREATE SEQUENCE test_seq");
+    }
+
+    @Test
+    public void shouldHandOutIncreasingIdsAcrossBlocks() {
+        var allocator = new IdAllocator(database, "test_seq", 10);
+        var previous = 0L;
+        for (int i = 0; i < 35; ++i) {
+            var id = allocator.nextId();
+            assertTrue(id + " after " + previous, id > previous);
+            previous = id;
+        }
+    }
+
+    @Test
+    public void shouldNotOverlapAllocatorsSharingSequence() {
+        // As two replicas, or one before and after a restart, would
+        var first = new IdAllocator(database, "test_seq", 10);
+        var second = new IdAllocator(database, "test_seq", 10);
+        var ids = new HashSet<Long>();
+        for (int i = 0; i < 50; ++i) {
+            assertTrue(ids.add(first.nextId()));
+            assertTrue(ids.add(second.nextId()));
+        }
+    }
+
+    @Test
+    public void shouldHandOutUniqueIdsConcurrently() throws Exception {
+        var allocator = new IdAllocator(database, "test_seq", 100);
+        var executor = Executors.newFixedThreadPool(8);
+        try {
+            var futures = new ArrayList<Future<List<Long>>>();
+            for (int t = 0; t < 8; ++t) {
+                futures.add(executor.submit(() -> {
+                    var ids = new ArrayList<Long>();
+                    for (int i = 0; i < 1000; ++i) {
+                        ids.add(allocator.nextId());
+                    }
+                    return ids;
+                }));
+            }
+            var ids = new HashSet<Long>();
+            for (var future : futures) {
+                for (var id : future.get(10, TimeUnit.SECONDS)) {
+                    assertTrue("duplicate " + id, ids.add(id));
+                }
+            }
+            assertEquals(8000, ids.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
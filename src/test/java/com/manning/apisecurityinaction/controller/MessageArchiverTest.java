@@ -0,0 +1,90 @@
+package com.manning.apisecurityinaction.controller;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.Test;
+
+public class MessageArchiverTest {
+    private static final Instant NOW = Instant.parse("2020-06-01T12:00:00Z");
+
+    private final Database database = Database.forDataSource(JdbcConnectionPool.create(
+            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "test", "test"));
+    private final List<List<Long>> archived = new ArrayList<>();
+
+    public MessageArchiverTest() throws Exception {
+        database.update(Files.readString(
+                Paths.get(getClass().getResource("/schema.sql").toURI())));
+        for (long spaceId = 1; spaceId <= 3; ++spaceId) {
+            database.update("INSERT INTO spaces(space_id, name, owner) VALUES(?, ?, 'demo')",
+                    spaceId, "space" + spaceId);
+        }
+        // Space 1 uses the default, space 2 keeps messages forever
+        database.update("INSERT INTO space_retention VALUES(2, 0), (3, 1)");
+    }
+
+    @Test
+    public void shouldArchiveExpiredMessagesOldestFirst() {
+        addMessage(1, 1, NOW.minus(Duration.ofDays(10)));
+        addMessage(1, 2, NOW.minus(Duration.ofDays(1)));
+        addMessage(2, 3, NOW.minus(Duration.ofDays(100)));
+        addMessage(3, 4, NOW.minus(Duration.ofDays(2)));
+        var archiver = archiver(7, 1);
+
+        assertEquals(1, archiver.archiveChunk(NOW));
+        assertEquals(List.of(List.of(1L, 1L)), archived);
+        assertEquals(1, archiver.archiveChunk(NOW));
+        assertEquals(0, archiver.archiveChunk(NOW));
+
+        assertEquals(List.of(List.of(1L, 1L), List.of(3L, 4L)), archived);
+        assertEquals(List.of(2L, 3L), ids("messages"));
+        assertEquals(List.of(1L, 4L), ids("archived_messages"));
+        assertEquals("message 1", database.findUnique(String.class,
+                "SELECT msg_text FROM archived_messages WHERE msg_id = 1"));
+    }
+
+    @Test
+    public void shouldKeepEverythingWithZeroDefaultRetention() {
+        addMessage(1, 1, NOW.minus(Duration.ofDays(1000)));
+        addMessage(3, 2, NOW.minus(Duration.ofDays(2)));
+
+        assertEquals(1, archiver(0, 10).archiveChunk(NOW));
+        assertEquals(List.of(1L), ids("messages"));
+        assertEquals(List.of(2L), ids("archived_messages"));
+    }
+
+    @Test
+    public void shouldKeepLinkPreviewsOfArchivedMessages() {
+        addMessage(1, 1, NOW.minus(Duration.ofDays(10)));
+        database.update("INSERT INTO link_previews VALUES(1, 0, 'https://example.com', '{}')");
+
+        assertEquals(1, archiver(7, 10).archiveChunk(NOW));
+        assertEquals(List.of(1L), ids("link_previews"));
+    }
+
+    private MessageArchiver archiver(int defaultRetentionDays, int chunkSize) {
+        return new MessageArchiver(database, new MetricsController(), defaultRetentionDays,
+                chunkSize, Duration.ofDays(1),
+                (spaceId, msgId) -> archived.add(List.of(spaceId, msgId)));
+    }
+
+    private void addMessage(long spaceId, long msgId, Instant time) {
+        database.update("INSERT INTO messages(space_id, msg_id, author, msg_time, msg_text) " +
+                "VALUES(?, ?, 'demo', ?, ?)", spaceId, msgId, time, "message " + msgId);
+    }
+
+    private List<Long> ids(String table) {
+        return database.executeQuery(rs -> {
+            var ids = new ArrayList<Long>();
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+            }
+            return ids;
+        }, "SELECT msg_id FROM " + table + " ORDER BY msg_id");
+    }
+}
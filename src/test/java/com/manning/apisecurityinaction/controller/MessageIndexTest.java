@@ -0,0 +1,157 @@
+package com.manning.apisecurityinaction.controller;
+
+import static org.junit.Assert.*;
+
+import java.time.*;
+import java.util.*;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.Test;
+
+public class MessageIndexTest {
+    private static final Instant TIME = Instant.parse("2020-01-01T12:00:00Z");
+
+    private final Database database = Database.forDataSource(JdbcConnectionPool.create(
+            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "test", "test"));
+
+    public MessageIndexTest() {
+        database.update("CREATE TABLE messages(space_id BIGINT NOT NULL, " +
+                "msg_id BIGINT PRIMARY KEY, msg_time TIMESTAMP NOT NULL, " +
+                "msg_text VARCHAR(1024) NOT NULL)");
+    }
+
+    @Test
+    public void shouldOnlyLoadMessagesInsideWindow() {
+        var now = Instant.now();
+        database.update("INSERT INTO messages VALUES(1, 1, ?, 'old news')",
+                now.minus(Duration.ofDays(8)));
+        database.update("INSERT INTO messages VALUES(1, 2, ?, 'new news')", now);
+
+        var index = index();
+        // Searches reaching back before the window also read the table
+        assertEquals(List.of(2L), index.search(1, "news", now.minusSeconds(60)));
+        assertEquals(List.of(1L, 2L), index.search(1, "news", Instant.EPOCH));
+        assertEquals(List.of(1L), index.search(1, "OLD", Instant.EPOCH));
+
+        // Only the table had the old message
+        database.update("DELETE FROM messages");
+        assertEquals(List.of(2L), index.search(1, "news", Instant.EPOCH));
+    }
+
+    @Test
+    public void shouldMatchWholeWordsWhenSearchingTable() {
+        database.update("INSERT INTO messages VALUES(1, 1, ?, 'scattered')", TIME);
+        database.update("INSERT INTO messages VALUES(1, 2, ?, 'cat, scat!')", TIME);
+        database.update("INSERT INTO messages VALUES(2, 3, ?, 'cat')", TIME);
+
+        assertEquals(List.of(2L), index().search(1, "cat", Instant.EPOCH));
+    }
+
+    @Test
+    public void shouldPruneMessagesOlderThanCutoff() {
+        var index = index();
+        var now = Instant.now();
+        index.add(1, 1, now.minusSeconds(120), "kept in table");
+        index.add(1, 2, now.minusSeconds(60), "kept in index");
+        index.add(2, 3, now.minusSeconds(120), "pruned");
+        database.update("INSERT INTO messages VALUES(1, 1, ?, 'kept in table')",
+                now.minusSeconds(120));
+
+        index.prune(now.minusSeconds(90));
+        assertEquals(List.of(2L), index.search(1, "kept", now.minusSeconds(90)));
+        assertEquals(List.of(1L, 2L), index.search(1, "kept", Instant.EPOCH));
+        assertEquals(List.of(1L), index.search(1, "table", Instant.EPOCH));
+        assertEquals(List.of(2L), index.search(1, "index", Instant.EPOCH));
+        assertEquals(List.of(), index.search(2, "pruned", Instant.EPOCH));
+    }
+
+    @Test
+    public void shouldSplitTextIntoLowerCaseWords() {
+        assertEquals(List.of("hello", "world", "it", "s", "42"),
+                List.copyOf(MessageIndex.terms("Hello, WORLD! it's 42 hello")));
+        assertEquals(Set.of(), MessageIndex.terms(" ,.! "));
+        assertEquals(Set.of("ok"), MessageIndex.terms("x".repeat(65) + " ok"));
+    }
+
+    @Test
+    public void shouldIndexExistingMessages() {
+        database.update("INSERT INTO messages VALUES(1, 5, ?, 'Hello, World!')", TIME);
+        database.update("INSERT INTO messages VALUES(2, 6, ?, 'hello there')", TIME);
+
+        var index = index();
+        assertEquals(List.of(5L), index.search(1, "hello", Instant.EPOCH));
+        assertEquals(List.of(6L), index.search(2, "hello", Instant.EPOCH));
+        assertEquals(List.of(), index.search(3, "hello", Instant.EPOCH));
+    }
+
+    @Test
+    public void shouldRequireEveryWordIgnoringCase() {
+        var index = index();
+        index.add(1, 1, TIME, "the quick brown fox");
+        index.add(1, 2, TIME, "The lazy dog");
+        index.add(1, 3, TIME, "a quick dog");
+
+        assertEquals(List.of(1L, 3L), index.search(1, "QUICK", Instant.EPOCH));
+        assertEquals(List.of(3L), index.search(1, "dog quick", Instant.EPOCH));
+        assertEquals(List.of(1L, 2L), index.search(1, "the", Instant.EPOCH));
+        assertEquals(List.of(), index.search(1, "quick cat", Instant.EPOCH));
+        assertEquals(List.of(), index.search(1, "!!", Instant.EPOCH));
+    }
+
+    @Test
+    public void shouldOnlyReturnMessagesSinceTime() {
+        var index = index();
+        index.add(1, 1, TIME, "news");
+        index.add(1, 2, TIME.plusSeconds(60), "news");
+        index.add(1, 3, TIME.plusSeconds(120), "news");
+
+        assertEquals(List.of(2L, 3L), index.search(1, "news", TIME.plusSeconds(60)));
+        assertEquals(List.of(), index.search(1, "news", TIME.plusSeconds(121)));
+    }
+
+    @Test
+    public void shouldKeepIdOrderWhenAddedOutOfOrder() {
+        var index = index();
+        index.add(1, 3, TIME.plusSeconds(3), "late");
+        index.add(1, 1, TIME.plusSeconds(1), "late");
+        index.add(1, 2, TIME.plusSeconds(2), "late");
+        index.add(1, 2, TIME.plusSeconds(2), "late");
+
+        assertEquals(List.of(1L, 2L, 3L), index.search(1, "late", Instant.EPOCH));
+        assertEquals(List.of(2L, 3L), index.search(1, "late", TIME.plusSeconds(2)));
+    }
+
+    @Test
+    public void shouldIndexIdsBeyondIntRange() {
+        var now = Instant.now();
+        database.update("INSERT INTO messages VALUES(1, ?, ?, 'big')", 1L << 40, now);
+        var index = index();
+        index.add(1, (1L << 40) + 1, now, "big");
+
+        var since = now.minusSeconds(60);
+        assertEquals(List.of(1L << 40, (1L << 40) + 1), index.search(1, "big", since));
+        index.remove(1, 1L << 40);
+        assertEquals(List.of((1L << 40) + 1), index.search(1, "big", since));
+    }
+
+    @Test
+    public void shouldForgetRemovedMessages() {
+        var index = index();
+        index.add(1, 1, TIME, "keep this");
+        index.add(1, 2, TIME.plusSeconds(60), "drop this");
+        index.add(1, 3, TIME.plusSeconds(120), "keep this");
+
+        index.remove(1, 2);
+        index.remove(1, 99);
+        index.remove(2, 1);
+        assertEquals(List.of(1L, 3L), index.search(1, "this", Instant.EPOCH));
+        assertEquals(List.of(), index.search(1, "drop", Instant.EPOCH));
+        // The times of the remaining messages must still line up
+        assertEquals(List.of(3L), index.search(1, "keep", TIME.plusSeconds(61)));
+    }
+
+    private MessageIndex index() {
+        return new MessageIndex(database, new MetricsController(), Duration.ofDays(7));
+    }
+}
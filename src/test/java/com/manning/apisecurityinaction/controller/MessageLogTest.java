@@ -0,0 +1,400 @@
+package com.manning.apisecurityinaction.controller;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+public class MessageLogTest {
+    private static final Instant TIME = Instant.parse("2020-01-01T12:00:00.123Z");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Database database = Database.forDataSource(JdbcConnectionPool.create(
+            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "test", "test"));
+    private final List<Long> applied = new CopyOnWriteArrayList<>();
+    private final List<Long> deadLettered = new CopyOnWriteArrayList<>();
+
+    public MessageLogTest() {
+        for (var table : List.of("messages", "archived_messages")) {
+            database.update("CREATE TABLE " + table + "(space_id BIGINT NOT NULL, " +
+                    "msg_id BIGINT PRIMARY KEY, author VARCHAR(30) NOT NULL, " +
+                    "msg_time TIMESTAMP NOT NULL, msg_text VARCHAR(1024) NOT NULL)");
+        }
+    }
+
+    @Test
+    public void shouldDecodeWhatWasEncoded() throws Exception {
+        var bytes = new ByteArrayOutputStream();
+        MessageLog.encode(new MessageLog.Entry(1, 2, TIME, "demo", "Hello, World!"), bytes);
+        MessageLog.encode(new MessageLog.Entry(1, 3, TIME, "\u00e9ve", ""), bytes);
+
+        var in = input(bytes.toByteArray());
+        var first = MessageLog.decode(in);
+        assertEquals(1, first.spaceId);
+        assertEquals(2, first.msgId);
+        assertEquals(TIME, first.time);
+        assertEquals("demo", first.author);
+        assertEquals("Hello, World!", first.text);
+        var second = MessageLog.decode(in);
+        assertEquals(3, second.msgId);
+        assertEquals("\u00e9ve", second.author);
+        assertEquals("", second.text);
+        assertNull(MessageLog.decode(in));
+    }
+
+    @Test
+    public void shouldStopAtTornRecord() throws Exception {
+        var bytes = new ByteArrayOutputStream();
+        MessageLog.encode(new MessageLog.Entry(1, 2, TIME, "demo", "first"), bytes);
+        MessageLog.encode(new MessageLog.Entry(1, 3, TIME, "demo", "second"), bytes);
+        var torn = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 3);
+
+        var in = input(torn);
+        assertEquals(2, MessageLog.decode(in).msgId);
+        assertNull(MessageLog.decode(in));
+    }
+
+    @Test
+    public void shouldRejectRecordWithBadChecksum() throws Exception {
+        var bytes = new ByteArrayOutputStream();
+        MessageLog.encode(new MessageLog.Entry(1, 2, TIME, "demo", "Hello"), bytes);
+        var corrupt = bytes.toByteArray();
+        corrupt[corrupt.length - 1] ^= 1;
+
+        assertNull(MessageLog.decode(input(corrupt)));
+    }
+
+    @Test
+    public void shouldReplayAndApplyLeftoverSegments() throws Exception {
+        var dir = folder.getRoot().toPath();
+        var bytes = new ByteArrayOutputStream();
+        MessageLog.encode(new MessageLog.Entry(1, 2, TIME, "demo", "first"), bytes);
+        MessageLog.encode(new MessageLog.Entry(1, 3, TIME, "demo", "second"), bytes);
+        MessageLog.encode(new MessageLog.Entry(1, 4, TIME, "demo", "third"), bytes);
+        bytes.write(new byte[] { 0, 0, 0, 42, 1 });
+        var segment = dir.resolve("messages-00000000000000000000.wal");
+        Files.write(segment, bytes.toByteArray());
+        // Applied, and one since archived, before a crash that left no
+        // applied file, so neither must be inserted again
+        database.update("INSERT INTO messages VALUES(1, 2, 'demo', ?, 'first')", TIME);
+        database.update("INSERT INTO archived_messages VALUES(1, 3, 'demo', ?, 'second')", TIME);
+
+        var log = newLog(dir, 1024);
+        assertEquals(List.of(2L, 3L, 4L), unappliedIds(log));
+        assertTrue(log.find(1, 3).isPresent());
+        assertFalse(log.find(2, 3).isPresent());
+
+        log.start();
+        assertTrue(log.awaitApplied(4, Duration.ofSeconds(5)));
+        assertEquals(List.of(2L, 4L), ids("messages"));
+        assertEquals(List.of(3L), ids("archived_messages"));
+        assertFalse(log.find(1, 3).isPresent());
+        await(segment + " deleted", () -> !Files.exists(segment));
+    }
+
+    @Test
+    public void shouldOnlyReplayMessagesAfterTheLastApplied() throws Exception {
+        var dir = folder.getRoot().toPath();
+        var log = newLog(dir, 1024);
+        log.start();
+        log.append(1, 2, TIME, "demo", "deleted");
+        log.append(1, 3, TIME, "demo", "archived");
+        assertTrue(log.awaitApplied(2, Duration.ofSeconds(5)));
+        assertTrue(log.awaitApplied(3, Duration.ofSeconds(5)));
+        database.update("DELETE FROM messages WHERE msg_id = 2");
+        database.update("INSERT INTO archived_messages SELECT * FROM messages WHERE msg_id = 3");
+        database.update("DELETE FROM messages WHERE msg_id = 3");
+
+        // Both are still in the active segment, as if the process had died
+        var restarted = newLog(dir, 1024);
+        assertEquals(List.of(), unappliedIds(restarted));
+        restarted.start();
+        restarted.append(1, 4, TIME, "demo", "new");
+        assertTrue(restarted.awaitApplied(4, Duration.ofSeconds(5)));
+        assertEquals(List.of(4L), ids("messages"));
+        assertEquals(List.of(3L), ids("archived_messages"));
+    }
+
+    @Test
+    public void shouldReplayEverythingIfAppliedFileIsCorrupt() throws Exception {
+        var dir = folder.getRoot().toPath();
+        var log = newLog(dir, 1024);
+        log.start();
+        log.append(1, 2, TIME, "demo", "first");
+        assertTrue(log.awaitApplied(2, Duration.ofSeconds(5)));
+        var applied = Files.readAllBytes(dir.resolve("applied"));
+        applied[3] ^= 1;
+        Files.write(dir.resolve("applied"), applied);
+
+        assertEquals(List.of(2L), unappliedIds(newLog(dir, 1024)));
+    }
+
+    @Test
+    public void shouldKeepLaterMessagesAfterTornWrite() throws Exception {
+        assertFailedWriteDiscarded(Failure.TORN_WRITE);
+    }
+
+    @Test
+    public void shouldNotReplayMessagesWhoseSyncFailed() throws Exception {
+        assertFailedWriteDiscarded(Failure.SYNC);
+    }
+
+    private void assertFailedWriteDiscarded(Failure failure) throws Exception {
+        var dir = folder.getRoot().toPath();
+        // Nothing is applied while the database is down, so all stay logged
+        var pool = JdbcConnectionPool.create("jdbc:h2:mem:" + UUID.randomUUID(), "test", "test");
+        pool.dispose();
+        var nextFailure = new AtomicReference<Failure>();
+        var log = new MessageLog(Database.forDataSource(pool), dir, 1024,
+                new MetricsController(), entry -> {}, entry -> {}) {
+            @Override
+            FileChannel openSegment(Path path) throws IOException {
+                return new FailingChannel(super.openSegment(path), nextFailure);
+            }
+        };
+        log.start();
+
+        log.append(1, 2, TIME, "demo", "before");
+        nextFailure.set(failure);
+        try {
+            log.append(1, 3, TIME, "demo", "failed");
+            fail("append should have failed");
+        } catch (UncheckedIOException expected) {
+        }
+        log.append(1, 4, TIME, "demo", "after");
+
+        assertEquals(List.of(2L, 4L), unappliedIds(newLog(dir, 1024)));
+    }
+
+    @Test
+    public void shouldDeleteSegmentsOnceApplied() throws Exception {
+        var dir = folder.getRoot().toPath();
+        // Every commit fills a segment, so each append starts a new one
+        var log = newLog(dir, 1);
+        log.start();
+
+        log.append(1, 2, TIME, "demo", "first");
+        assertTrue(log.awaitApplied(2, Duration.ofSeconds(5)));
+        var first = dir.resolve("messages-00000000000000000000.wal");
+        assertTrue(Files.exists(first));
+
+        log.append(1, 3, TIME, "demo", "second");
+        assertTrue(log.awaitApplied(3, Duration.ofSeconds(5)));
+        await(first + " deleted", () -> !Files.exists(first));
+        assertTrue(Files.exists(dir.resolve("messages-00000000000000000001.wal")));
+        await("hooks run", () -> applied.size() == 2);
+        assertEquals(List.of(2L, 3L), applied);
+    }
+
+    @Test
+    public void shouldDeadLetterMessagesTheDatabaseRejects() throws Exception {
+        var dir = folder.getRoot().toPath();
+        var log = newLog(dir, 1024);
+        log.start();
+
+        var tooLong = "x".repeat(31);
+        log.append(1, 2, TIME, tooLong, "rejected");
+        log.append(1, 3, TIME, "demo", "accepted");
+        assertTrue(log.awaitApplied(2, Duration.ofSeconds(5)));
+        assertTrue(log.awaitApplied(3, Duration.ofSeconds(5)));
+
+        await("hooks run", () -> deadLettered.size() + applied.size() == 2);
+        assertEquals(List.of(2L), deadLettered);
+        assertEquals(List.of(3L), applied);
+        var in = input(Files.readAllBytes(dir.resolve("dead-letters.log")));
+        var entry = MessageLog.decode(in);
+        assertEquals(2, entry.msgId);
+        assertEquals(tooLong, entry.author);
+        assertNull(MessageLog.decode(in));
+    }
+
+    @Test
+    public void shouldFailAppendsOnceWriterStops() throws Exception {
+        var before = writerThreads();
+        var log = newLog(folder.getRoot().toPath(), 1024);
+        log.start();
+        var writers = writerThreads();
+        writers.removeAll(before);
+        assertEquals(1, writers.size());
+
+        var writer = writers.iterator().next();
+        writer.interrupt();
+        writer.join(5000);
+        var append = CompletableFuture.runAsync(() -> log.append(1, 2, TIME, "demo", "lost"));
+        try {
+            append.get(5, TimeUnit.SECONDS);
+            fail("append should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UncheckedIOException);
+        }
+    }
+
+    private MessageLog newLog(Path dir, long segmentBytes) throws IOException {
+        return new MessageLog(database, dir, segmentBytes, new MetricsController(),
+                entry -> applied.add(entry.msgId), entry -> deadLettered.add(entry.msgId));
+    }
+
+    private static Set<Thread> writerThreads() {
+        var threads = new HashSet<Thread>();
+        for (var thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("message-log-writer")) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    private static List<Long> unappliedIds(MessageLog log) {
+        var ids = new ArrayList<Long>();
+        log.unapplied().forEach(entry -> ids.add(entry.msgId));
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private List<Long> ids(String table) {
+        return database.executeQuery(rs -> {
+            var ids = new ArrayList<Long>();
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+            }
+            return ids;
+        }, "SELECT msg_id FROM " + table + " ORDER BY msg_id");
+    }
+
+    // Hooks and segment deletion run on the applier thread just after it
+    // completes a message, so may not have happened when awaitApplied returns
+    private static void await(String what, BooleanSupplier condition)
+            throws InterruptedException {
+        for (int i = 0; i < 50 && !condition.getAsBoolean(); ++i) {
+            Thread.sleep(100);
+        }
+        assertTrue(what, condition.getAsBoolean());
+    }
+
+    private enum Failure { TORN_WRITE, SYNC }
+
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        private final AtomicReference<Failure> nextFailure;
+
+        FailingChannel(FileChannel channel, AtomicReference<Failure> nextFailure) {
+            this.channel = channel;
+            this.nextFailure = nextFailure;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (nextFailure.compareAndSet(Failure.TORN_WRITE, null)) {
+                src.limit(src.position() + src.remaining() / 2);
+                channel.write(src);
+                throw new IOException("injected torn write");
+            }
+            return channel.write(src);
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if (nextFailure.compareAndSet(Failure.SYNC, null)) {
+                throw new IOException("injected sync failure");
+            }
+            channel.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target)
+                throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count)
+                throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
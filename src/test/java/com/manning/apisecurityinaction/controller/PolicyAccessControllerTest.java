@@ -0,0 +1,38 @@
+package com.manning.apisecurityinaction.controller;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.LocalTime;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.manning.apisecurityinaction.controller.ABACAccessController.*;
+
+public class PolicyAccessControllerTest {
+
+    @Test
+    public void shouldMatchDroolsDecisions() throws Exception {
+        var drools = new DroolsAccessController(new MetricsController());
+        var policy = new PolicyAccessController(new MetricsController());
+        var subject = new Subject("demo", List.of("moderators"));
+        var resource = new Resource("/spaces/1/messages/2", "1");
+
+        for (var method : List.of("GET", "POST", "PUT", "DELETE")) {
+            for (int hour = 0; hour < 24; ++hour) {
+                var action = new Action(method);
+                var env = new Environment(LocalTime.of(hour, 30), "127.0.0.1");
+                assertEquals(method + " at " + hour,
+                        drools.checkPermitted(subject, resource, action, env),
+                        policy.checkPermitted(subject, resource, action, env));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownAttributes() {
+        PolicyAccessController.compile(new org.json.JSONObject(
+                "{\"rules\": [{\"effect\": \"deny\", \"when\": " +
+                "{\"attr\": \"subject.age\", \"op\": \">\", \"value\": 1}}]}"));
+    }
+}
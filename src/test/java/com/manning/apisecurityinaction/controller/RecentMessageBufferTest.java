@@ -0,0 +1,70 @@
+package com.manning.apisecurityinaction.controller;
+
+import static org.junit.Assert.*;
+
+import java.time.*;
+import java.util.*;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.Test;
+
+public class RecentMessageBufferTest {
+    private static final Instant TIME = Instant.parse("2020-01-01T12:00:00Z");
+
+    private final Database database = Database.forDataSource(JdbcConnectionPool.create(
+            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "test", "test"));
+    private final RecentMessageBuffer buffer =
+            new RecentMessageBuffer(database, 3, 100, Duration.ofMinutes(1));
+
+    public RecentMessageBufferTest() {
+        database.update("CREATE TABLE messages(space_id BIGINT NOT NULL, " +
+                "msg_id BIGINT PRIMARY KEY, msg_time TIMESTAMP NOT NULL)");
+    }
+
+    @Test
+    public void shouldLoadRecentMessagesOldestFirst() {
+        for (long id = 1; id <= 3; ++id) {
+            addMessage(1, id, TIME.plusSeconds(id));
+        }
+        addMessage(2, 4, TIME);
+
+        assertEquals(Optional.of(List.of(1L, 2L, 3L)), buffer.findSince(1, Instant.EPOCH));
+        assertEquals(Optional.of(List.of(2L, 3L)), buffer.findSince(1, TIME.plusSeconds(2)));
+        assertEquals(Optional.of(List.of(4L)), buffer.findSince(2, Instant.EPOCH));
+        assertEquals(Optional.of(List.of()), buffer.findSince(3, Instant.EPOCH));
+    }
+
+    @Test
+    public void shouldNotAnswerForTimesBeforeWhatItHolds() {
+        for (long id = 1; id <= 4; ++id) {
+            addMessage(1, id, TIME.plusSeconds(id));
+        }
+
+        assertEquals(Optional.empty(), buffer.findSince(1, TIME.plusSeconds(1)));
+        assertEquals(Optional.of(List.of(2L, 3L, 4L)), buffer.findSince(1, TIME.plusSeconds(2)));
+    }
+
+    @Test
+    public void shouldAppendAndRemoveOnceLoaded() {
+        addMessage(1, 1, TIME);
+        buffer.findSince(1, Instant.EPOCH);
+
+        buffer.append(1, 2, TIME.plusSeconds(1));
+        buffer.append(1, 3, TIME.plusSeconds(2));
+        assertEquals(Optional.of(List.of(1L, 2L, 3L)), buffer.findSince(1, Instant.EPOCH));
+
+        buffer.remove(1, 2);
+        assertEquals(Optional.of(List.of(1L, 3L)), buffer.findSince(1, Instant.EPOCH));
+
+        // The oldest is evicted, so earlier times can no longer be answered
+        buffer.append(1, 4, TIME.plusSeconds(3));
+        buffer.append(1, 5, TIME.plusSeconds(4));
+        assertEquals(Optional.empty(), buffer.findSince(1, TIME));
+        assertEquals(Optional.of(List.of(3L, 4L, 5L)), buffer.findSince(1, TIME.plusSeconds(1)));
+    }
+
+    private void addMessage(long spaceId, long msgId, Instant time) {
+        database.update("INSERT INTO messages VALUES(?, ?, ?)", spaceId, msgId, time);
+    }
+}
@@ -0,0 +1,137 @@
+package com.manning.apisecurityinaction.controller;
+
+import static org.junit.Assert.*;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentedAuditLogTest {
+    private static final Instant TIME = Instant.parse("2020-01-01T12:00:00Z");
+    private static final long SEGMENT_BYTES = 4 * SegmentedAuditLog.RECORD_SIZE;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldRecoverRecordsAcrossSegmentsAfterRestart() throws Exception {
+        var dir = folder.getRoot().toPath();
+        var log = open(dir);
+        for (int i = 0; i < 10; ++i) {
+            log.write(event(log.nextAuditId(), TIME.plusSeconds(i)));
+        }
+
+        // Not closed, as if the process had died
+        var reopened = open(dir);
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L),
+                ids(query(reopened, null, null, 100)));
+        assertEquals(11L, reopened.nextAuditId());
+        assertTrue(Files.exists(dir.resolve("audit-00000000000000000000.idx")));
+    }
+
+    @Test
+    public void shouldPageWithCursorsAndFilterBySince() throws Exception {
+        var log = open(folder.getRoot().toPath());
+        for (int i = 0; i < 10; ++i) {
+            log.write(event(log.nextAuditId(), TIME.plusSeconds(i)));
+        }
+
+        var first = query(log, null, null, 3);
+        assertEquals(List.of(1L, 2L, 3L), ids(first));
+        var cursor = first.get(2).getValue();
+        assertEquals(List.of(4L, 5L, 6L, 7L, 8L), ids(query(log, null, cursor, 5)));
+        assertEquals(List.of(8L, 9L, 10L), ids(query(log, TIME.plusSeconds(7), null, 100)));
+    }
+
+    @Test
+    public void shouldNotResurrectRecordsAfterTornOne() throws Exception {
+        var dir = folder.getRoot().toPath();
+        var log = open(dir);
+        for (int i = 0; i < 3; ++i) {
+            log.write(event(log.nextAuditId(), TIME));
+        }
+        var segment = dir.resolve("audit-00000000000000000000.seg");
+        try (var channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }),
+                    SegmentedAuditLog.RECORD_SIZE + 20);
+        }
+
+        var reopened = open(dir);
+        assertEquals(List.of(1L), ids(query(reopened, null, null, 100)));
+        reopened.write(event(reopened.nextAuditId(), TIME));
+        assertEquals(List.of(1L, 2L), ids(query(open(dir), null, null, 100)));
+    }
+
+    @Test
+    public void shouldRejectInvalidCursors() throws Exception {
+        var log = open(folder.getRoot().toPath());
+        for (var cursor : List.of("12", "1.2.3", "x.1")) {
+            try {
+                query(log, null, cursor, 10);
+                fail("accepted cursor " + cursor);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void shouldFailWritesOnceWriterStops() throws Exception {
+        var before = writerThreads();
+        var log = open(folder.getRoot().toPath());
+        log.write(event(log.nextAuditId(), TIME));
+        var writers = writerThreads();
+        writers.removeAll(before);
+        assertEquals(1, writers.size());
+
+        var writer = writers.iterator().next();
+        writer.interrupt();
+        writer.join(5000);
+        var write = CompletableFuture.runAsync(() -> log.write(event(2L, TIME)));
+        try {
+            write.get(5, TimeUnit.SECONDS);
+            fail("write should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UncheckedIOException);
+        }
+    }
+
+    private SegmentedAuditLog open(Path dir) throws Exception {
+        return new SegmentedAuditLog(dir, SEGMENT_BYTES, Duration.ofDays(30),
+                new MetricsController());
+    }
+
+    private static AuditEvent event(long auditId, Instant time) {
+        return new AuditEvent(auditId, "GET", "/spaces/1", "demo", 200, time);
+    }
+
+    private static List<Map.Entry<AuditEvent, String>> query(SegmentedAuditLog log,
+            Instant since, String after, int limit) throws Exception {
+        var results = new ArrayList<Map.Entry<AuditEvent, String>>();
+        log.query(new AuditQuery(since, null, null, null, null, after, limit),
+                (event, cursor) -> results.add(Map.entry(event, cursor)));
+        return results;
+    }
+
+    private static List<Long> ids(List<Map.Entry<AuditEvent, String>> results) {
+        var ids = new ArrayList<Long>();
+        results.forEach(result -> ids.add(result.getKey().auditId));
+        return ids;
+    }
+
+    private static Set<Thread> writerThreads() {
+        var threads = new HashSet<Thread>();
+        for (var thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("audit-log-writer")) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+}
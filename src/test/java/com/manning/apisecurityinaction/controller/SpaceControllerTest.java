@@ -0,0 +1,41 @@
+package com.manning.apisecurityinaction.controller;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SpaceControllerTest {
+
+    @Test
+    public void shouldMatchSameEntityTag() {
+        assertTrue(SpaceController.matches("\"1.2.live\"", "\"1.2.live\""));
+        assertFalse(SpaceController.matches("\"1.2.archived\"", "\"1.2.live\""));
+        assertFalse(SpaceController.matches("\"1.2\"", "\"1.2.live\""));
+    }
+
+    @Test
+    public void shouldCompareWeaklyForIfNoneMatch() {
+        assertTrue(SpaceController.matches("W/\"1.2.live\"", "\"1.2.live\""));
+        assertTrue(SpaceController.matches("\"abc\"", "W/\"abc\""));
+        assertTrue(SpaceController.matches("W/\"abc\"", "W/\"abc\""));
+    }
+
+    @Test
+    public void shouldMatchAnyTagInList() {
+        assertTrue(SpaceController.matches("\"a\", W/\"b\",\"c\"", "\"b\""));
+        assertTrue(SpaceController.matches("\"a\",\"c\"", "\"c\""));
+        assertFalse(SpaceController.matches("\"a\", \"c\"", "\"b\""));
+    }
+
+    @Test
+    public void shouldMatchWildcard() {
+        assertTrue(SpaceController.matches("*", "\"anything\""));
+        assertTrue(SpaceController.matches(" * ", "W/\"anything\""));
+    }
+
+    @Test
+    public void shouldNotMatchWithoutHeader() {
+        assertFalse(SpaceController.matches(null, "\"1.2.live\""));
+        assertFalse(SpaceController.matches("", "\"1.2.live\""));
+    }
+}
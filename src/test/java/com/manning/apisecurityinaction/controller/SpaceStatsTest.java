@@ -0,0 +1,93 @@
+package com.manning.apisecurityinaction.controller;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+
+import org.dalesbred.Database;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class SpaceStatsTest {
+    private static final Instant TIME = Instant.parse("2020-01-01T12:00:00Z");
+
+    private final Database database = Database.forDataSource(JdbcConnectionPool.create(
+            "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "test", "test"));
+
+    public SpaceStatsTest() throws Exception {
+        database.update(Files.readString(
+                Paths.get(getClass().getResource("/schema.sql").toURI())));
+        for (long spaceId = 1; spaceId <= 2; ++spaceId) {
+            database.update("INSERT INTO spaces(space_id, name, owner) VALUES(?, ?, 'demo')",
+                    spaceId, "space" + spaceId);
+        }
+    }
+
+    @Test
+    public void shouldCountLiveAndArchivedMessagesOnRebuild() {
+        addMessage("messages", 1, 1, "alice", TIME);
+        addMessage("messages", 1, 2, "bob", TIME.plusSeconds(60));
+        addMessage("messages", 1, 3, "alice", TIME.plusSeconds(30));
+        addMessage("archived_messages", 1, 4, "bob", TIME.minusSeconds(60));
+        addMessage("messages", 2, 5, "carol", TIME);
+
+        var stats = new SpaceStats(database, List.of());
+        assertSummary(stats.summary(1), 4, TIME.plusSeconds(60),
+                Map.of("alice", 2L, "bob", 2L));
+        assertSummary(stats.summary(2), 1, TIME, Map.of("carol", 1L));
+        assertSummary(stats.summary(3), 0, null, Map.of());
+    }
+
+    @Test
+    public void shouldMatchTablesAfterRestartWhateverHappenedBefore() {
+        addMessage("messages", 1, 1, "alice", TIME);
+        addMessage("messages", 1, 2, "alice", TIME);
+        var stats = new SpaceStats(database, List.of());
+
+        // Posted and deleted, then the process dies without any shutdown
+        addMessage("messages", 1, 3, "bob", TIME.plusSeconds(60));
+        stats.added(1, "bob", TIME.plusSeconds(60));
+        database.update("DELETE FROM messages WHERE msg_id = 1");
+        stats.removed(1, "alice");
+        assertSummary(stats.summary(1), 2, TIME.plusSeconds(60),
+                Map.of("alice", 1L, "bob", 1L));
+
+        assertSummary(new SpaceStats(database, List.of()).summary(1), 2,
+                TIME.plusSeconds(60), Map.of("alice", 1L, "bob", 1L));
+    }
+
+    @Test
+    public void shouldCountUnappliedLogEntriesOnce() {
+        addMessage("messages", 1, 1, "alice", TIME);
+        // Applied before the process died, but not yet recorded as applied
+        addMessage("messages", 1, 2, "alice", TIME.plusSeconds(1));
+        var unapplied = List.of(
+                new MessageLog.Entry(1, 2, TIME.plusSeconds(1), "alice", "applied"),
+                new MessageLog.Entry(1, 3, TIME.plusSeconds(2), "bob", "not applied"));
+
+        assertSummary(new SpaceStats(database, unapplied).summary(1), 3,
+                TIME.plusSeconds(2), Map.of("alice", 2L, "bob", 1L));
+    }
+
+    private void addMessage(String table, long spaceId, long msgId, String author,
+            Instant time) {
+        database.update("INSERT INTO " + table + "(space_id, msg_id, author, msg_time, " +
+                "msg_text) VALUES(?, ?, ?, ?, 'hello')", spaceId, msgId, author, time);
+    }
+
+    private static void assertSummary(JSONObject summary, long count, Instant lastActivity,
+            Map<String, Long> posters) {
+        assertEquals(count, summary.getLong("message-count"));
+        assertEquals(lastActivity == null ? JSONObject.NULL : lastActivity.toString(),
+                summary.get("last-activity"));
+        var top = new HashMap<String, Long>();
+        for (var poster : summary.getJSONArray("top-posters")) {
+            var json = (JSONObject) poster;
+            top.put(json.getString("author"), json.getLong("message-count"));
+        }
+        assertEquals(posters, top);
+    }
+}